@@ -0,0 +1,167 @@
+/*
+ * SonarScanner Java Library - Benchmarks
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonarsource.scanner.lib.ScannerProperties;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
+
+/**
+ * Start of a JVM loading all the classes of a stand-in scanner engine, made of the classes of the dependencies of the
+ * library, launched with {@code -jar} and from the jar expanded in the cache. The number of loaded classes is printed
+ * during the setup.
+ * <p>
+ * Run with {@code mvn -Pbenchmarks package -DskipTests && java -jar benchmarks/target/benchmarks.jar ScannerEngineStartBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ScannerEngineStartBenchmark {
+
+  private static final String CLASSES_LIST = "classes.txt";
+  private static final List<String> PACKAGES = List.of("okhttp3/", "okio/", "kotlin/", "com/google/gson/", "org/apache/commons/",
+    "org/tukaani/", "org/sonarsource/", "org/openjdk/jmh/");
+
+  @Param({"jar", "exploded"})
+  public String launch;
+
+  private Path workDir;
+  private List<String> command;
+
+  @Setup(Level.Trial)
+  public void createScannerEngine() throws IOException {
+    workDir = Files.createTempDirectory("engine");
+    var jar = Files.createDirectories(workDir.resolve("cache/AB/CD/ABCDE")).resolve("scanner-engine.jar");
+    writeScannerEngine(jar);
+    command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    if ("exploded".equals(launch)) {
+      try (var fileCache = FileCache.create(workDir)) {
+        var explodedScannerEngine = ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true),
+          Map.of(ScannerProperties.SCANNER_EXPLODED_ENGINE, "true"), () -> {
+          });
+        command.addAll(explodedScannerEngine.getLaunchArgs());
+      }
+    } else {
+      command.add("-jar");
+      command.add(jar.toString());
+    }
+  }
+
+  private static void writeScannerEngine(Path jar) throws IOException {
+    var manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, LoadClasses.class.getName());
+    var classes = new StringBuilder();
+    int count = 0;
+    var benchmarksJar = Paths.get(ScannerEngineStartBenchmark.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+    try (var source = new JarFile(benchmarksJar.toFile()); var out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      for (var entry : source.stream().toArray(ZipEntry[]::new)) {
+        var name = entry.getName();
+        if (entry.isDirectory() || PACKAGES.stream().noneMatch(name::startsWith)) {
+          continue;
+        }
+        out.putNextEntry(new ZipEntry(name));
+        try (var in = source.getInputStream(entry)) {
+          in.transferTo(out);
+        }
+        out.closeEntry();
+        if (name.endsWith(".class") && !name.contains("$")) {
+          classes.append(name, 0, name.length() - ".class".length()).append('\n');
+          count++;
+        }
+      }
+      out.putNextEntry(new ZipEntry(CLASSES_LIST));
+      out.write(classes.toString().replace('/', '.').getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    System.out.println("\nClasses loaded by the stand-in scanner engine: " + count);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteScannerEngine() throws IOException {
+    FileUtils.deleteDirectory(workDir.toFile());
+  }
+
+  @Benchmark
+  public int start() throws IOException, InterruptedException {
+    var process = new ProcessBuilder(command)
+      .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+      .redirectError(ProcessBuilder.Redirect.DISCARD)
+      .start();
+    var exitCode = process.waitFor();
+    if (exitCode != 0) {
+      throw new IllegalStateException("The stand-in scanner engine failed with exit code " + exitCode);
+    }
+    return exitCode;
+  }
+
+  /**
+   * Main class of the stand-in scanner engine.
+   */
+  public static class LoadClasses {
+    public static void main(String[] args) throws IOException {
+      var loader = LoadClasses.class.getClassLoader();
+      try (var reader = new BufferedReader(new InputStreamReader(loader.getResourceAsStream(CLASSES_LIST), StandardCharsets.UTF_8))) {
+        String className;
+        while ((className = reader.readLine()) != null) {
+          try {
+            Class.forName(className, false, loader);
+          } catch (LinkageError | ClassNotFoundException e) {
+            // optional dependencies of the library are not there
+          }
+        }
+      }
+    }
+  }
+}
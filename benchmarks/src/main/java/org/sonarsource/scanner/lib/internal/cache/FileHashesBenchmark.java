@@ -0,0 +1,106 @@
+/*
+ * SonarScanner Java Library - Benchmarks
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing of JRE-sized files, compared to the implementation reading 1 KB at a time and encoding with {@link BigInteger}.
+ * <p>
+ * Run with {@code mvn -Pbenchmarks package -DskipTests && java -jar benchmarks/target/benchmarks.jar FileHashesBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileHashesBenchmark {
+
+  private static final int LEGACY_BUFFER_LENGTH = 1024;
+
+  @Param({"50", "200"})
+  public int sizeInMb;
+
+  @Param({"SHA-256", "MD5"})
+  public String algorithm;
+
+  private final FileHashes fileHashes = new FileHashes();
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void createFile() throws IOException {
+    file = Files.createTempFile("hashes", ".bin");
+    var random = new Random(42);
+    var chunk = new byte[1024 * 1024];
+    try (var out = Files.newOutputStream(file)) {
+      for (int i = 0; i < sizeInMb; i++) {
+        random.nextBytes(chunk);
+        out.write(chunk);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public String current() {
+    return fileHashes.of(file.toFile(), algorithm);
+  }
+
+  @Benchmark
+  public String legacy() throws Exception {
+    try (InputStream is = new FileInputStream(file.toFile())) {
+      var digest = MessageDigest.getInstance(algorithm);
+      var buffer = new byte[LEGACY_BUFFER_LENGTH];
+      int read = is.read(buffer, 0, LEGACY_BUFFER_LENGTH);
+      while (read > -1) {
+        digest.update(buffer, 0, read);
+        read = is.read(buffer, 0, LEGACY_BUFFER_LENGTH);
+      }
+      var hash = digest.digest();
+      return String.format("%0" + (hash.length << 1) + "x", new BigInteger(1, hash));
+    }
+  }
+}
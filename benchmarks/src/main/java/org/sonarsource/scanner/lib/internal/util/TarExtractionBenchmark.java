@@ -0,0 +1,142 @@
+/*
+ * SonarScanner Java Library - Benchmarks
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of the same tar, shaped like a Linux JRE (a few thousand files, mostly small), compressed with gzip, xz and
+ * zstd. The size of each archive is printed during the setup.
+ * <p>
+ * Run with {@code mvn -Pbenchmarks package -DskipTests && java -jar benchmarks/target/benchmarks.jar TarExtractionBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarExtractionBenchmark {
+
+  private static final int FILES = 3000;
+
+  @Param({"gz", "xz", "zst"})
+  public String compression;
+
+  private Path workDir;
+  private Path archive;
+  private Path targetDir;
+
+  @Setup(Level.Trial)
+  public void createArchive() throws IOException {
+    workDir = Files.createTempDirectory("untar");
+    archive = workDir.resolve("jre.tar." + compression);
+    var random = new Random(42);
+    try (var out = new TarArchiveOutputStream(compress(Files.newOutputStream(archive)))) {
+      out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+      for (int i = 0; i < FILES; i++) {
+        // a few large files, like lib/modules, among many small ones
+        var content = compressibleContent(random, i % 500 == 0 ? 8 * 1024 * 1024 : 4 * 1024 + random.nextInt(32 * 1024));
+        var entry = new TarArchiveEntry("jre/lib/dir" + (i % 50) + "/file" + i + ".class");
+        entry.setSize(content.length);
+        // permissions only, as written by GNU tar
+        entry.setMode(0644);
+        out.putArchiveEntry(entry);
+        out.write(content);
+        out.closeArchiveEntry();
+      }
+    }
+    System.out.println("\nSize of " + archive.getFileName() + ": " + FileUtils.byteCountToDisplaySize(Files.size(archive)));
+  }
+
+  private OutputStream compress(OutputStream out) throws IOException {
+    switch (compression) {
+      case "gz":
+        return new GzipCompressorOutputStream(out);
+      case "xz":
+        return new XZCompressorOutputStream(out);
+      case "zst":
+        return new ZstdCompressorOutputStream(out, 19);
+      default:
+        throw new IllegalArgumentException(compression);
+    }
+  }
+
+  private static byte[] compressibleContent(Random random, int size) {
+    var content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return content;
+  }
+
+  @Setup(Level.Invocation)
+  public void createTargetDir() throws IOException {
+    targetDir = Files.createTempDirectory(workDir, "target");
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteTargetDir() throws IOException {
+    FileUtils.deleteDirectory(targetDir.toFile());
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteArchive() throws IOException {
+    FileUtils.deleteDirectory(workDir.toFile());
+  }
+
+  @Benchmark
+  public void extract() throws IOException {
+    switch (compression) {
+      case "gz":
+        CompressionUtils.extractTarGz(archive, targetDir, e -> true);
+        break;
+      case "xz":
+        CompressionUtils.extractTarXz(archive, targetDir, e -> true);
+        break;
+      default:
+        CompressionUtils.extractTarZstd(archive, targetDir, e -> true);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * SonarScanner Java Library - Benchmarks
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of a zip shaped like a Windows JRE (a few thousand files, mostly small), sequentially ({@code threads = 1})
+ * and concurrently.
+ * <p>
+ * Run with {@code mvn -Pbenchmarks package -DskipTests && java -jar benchmarks/target/benchmarks.jar UnzipBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UnzipBenchmark {
+
+  private static final int FILES = 3000;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  private Path workDir;
+  private Path zip;
+  private Path targetDir;
+
+  @Setup(Level.Trial)
+  public void createZip() throws IOException {
+    workDir = Files.createTempDirectory("unzip");
+    zip = workDir.resolve("jre.zip");
+    var random = new Random(42);
+    try (var out = new ZipOutputStream(Files.newOutputStream(zip))) {
+      for (int i = 0; i < FILES; i++) {
+        out.putNextEntry(new ZipEntry("jre/lib/dir" + (i % 50) + "/file" + i + ".class"));
+        // a few large files, like lib/modules, among many small ones
+        out.write(compressibleContent(random, i % 500 == 0 ? 8 * 1024 * 1024 : 4 * 1024 + random.nextInt(32 * 1024)));
+      }
+    }
+  }
+
+  private static byte[] compressibleContent(Random random, int size) {
+    var content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return content;
+  }
+
+  @Setup(Level.Invocation)
+  public void createTargetDir() throws IOException {
+    targetDir = Files.createTempDirectory(workDir, "target");
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteTargetDir() throws IOException {
+    FileUtils.deleteDirectory(targetDir.toFile());
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteZip() throws IOException {
+    FileUtils.deleteDirectory(workDir.toFile());
+  }
+
+  @Benchmark
+  public Path unzip() throws IOException {
+    return CompressionUtils.unzip(zip, targetDir, e -> true, threads);
+  }
+}
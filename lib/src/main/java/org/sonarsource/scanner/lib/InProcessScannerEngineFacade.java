@@ -20,18 +20,22 @@
 package org.sonarsource.scanner.lib;
 
 import java.util.Map;
+import java.util.Optional;
 import javax.annotation.Nullable;
 import org.sonarsource.scanner.lib.internal.IsolatedLauncherFactory;
 import org.sonarsource.scanner.lib.internal.Slf4jLogOutputAdapter;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
 
 class InProcessScannerEngineFacade extends ScannerEngineFacade {
 
   private final IsolatedLauncherFactory.IsolatedLauncherAndClassloader launcherAndCl;
+  private final FileCache fileCache;
 
   InProcessScannerEngineFacade(Map<String, String> bootstrapProperties, IsolatedLauncherFactory.IsolatedLauncherAndClassloader launcherAndCl,
-    boolean isSonarCloud, @Nullable String serverVersion) {
+    FileCache fileCache, boolean isSonarCloud, @Nullable String serverVersion) {
     super(bootstrapProperties, isSonarCloud, serverVersion, launcherAndCl.wasEngineCacheHit(), null);
     this.launcherAndCl = launcherAndCl;
+    this.fileCache = fileCache;
   }
 
   @Override
@@ -40,8 +44,14 @@ class InProcessScannerEngineFacade extends ScannerEngineFacade {
     return true;
   }
 
+  @Override
+  public Optional<UserCacheStatistics> getCacheStatistics() {
+    return Optional.of(new UserCacheStatistics(fileCache.getStatistics()));
+  }
+
   @Override
   public void close() throws Exception {
     launcherAndCl.close();
+    fileCache.close();
   }
 }
@@ -20,16 +20,20 @@
 package org.sonarsource.scanner.lib;
 
 import java.util.Map;
+import java.util.Optional;
 import javax.annotation.Nullable;
 import org.sonarsource.scanner.lib.internal.ScannerEngineLauncher;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
 
 class NewScannerEngineFacade extends ScannerEngineFacade {
   private final ScannerEngineLauncher launcher;
+  private final FileCache fileCache;
 
-  NewScannerEngineFacade(Map<String, String> bootstrapProperties, ScannerEngineLauncher launcher,
+  NewScannerEngineFacade(Map<String, String> bootstrapProperties, ScannerEngineLauncher launcher, FileCache fileCache,
     boolean isSonarCloud, @Nullable String serverVersion) {
     super(bootstrapProperties, isSonarCloud, serverVersion, launcher.isEngineCacheHit(), launcher.getJreCacheHit());
     this.launcher = launcher;
+    this.fileCache = fileCache;
   }
 
   @Override
@@ -37,8 +41,13 @@ class NewScannerEngineFacade extends ScannerEngineFacade {
     return launcher.execute(allProps);
   }
 
+  @Override
+  public Optional<UserCacheStatistics> getCacheStatistics() {
+    return Optional.of(new UserCacheStatistics(fileCache.getStatistics()));
+  }
+
   @Override
   public void close() throws Exception {
-    // nothing to do
+    fileCache.close();
   }
 }
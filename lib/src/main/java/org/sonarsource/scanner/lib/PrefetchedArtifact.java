@@ -0,0 +1,79 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * An artifact put in the user cache by {@link ScannerEngineBootstrapper#prefetch(String...)}.
+ */
+public class PrefetchedArtifact {
+
+  private final String name;
+  private final String hash;
+  private final boolean cacheHit;
+  private final long bytesFetched;
+  private final long durationMillis;
+
+  PrefetchedArtifact(String name, String hash, boolean cacheHit, long bytesFetched, long durationMillis) {
+    this.name = name;
+    this.hash = hash;
+    this.cacheHit = cacheHit;
+    this.bytesFetched = bytesFetched;
+    this.durationMillis = durationMillis;
+  }
+
+  /**
+   * Human-readable name of the artifact, for example {@code JRE linux/x64} or {@code scanner engine}.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Hash of the artifact, identifying its entry in the user cache, for example to
+   * {@link ScannerEngineBootstrapper#exportCacheBundle(Collection, Path) export} it.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * Whether the artifact was already in the cache.
+   */
+  public boolean isCacheHit() {
+    return cacheHit;
+  }
+
+  /**
+   * Number of bytes downloaded from the server, zero on a cache hit.
+   */
+  public long getBytesFetched() {
+    return bytesFetched;
+  }
+
+  /**
+   * Time spent getting the artifact, including the extraction of archives.
+   */
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+}
@@ -21,21 +21,30 @@ package org.sonarsource.scanner.lib;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonarsource.scanner.lib.internal.ArchResolver;
+import org.sonarsource.scanner.lib.internal.CacheJanitor;
 import org.sonarsource.scanner.lib.internal.InternalProperties;
 import org.sonarsource.scanner.lib.internal.IsolatedLauncherFactory;
 import org.sonarsource.scanner.lib.internal.OsResolver;
 import org.sonarsource.scanner.lib.internal.Paths2;
 import org.sonarsource.scanner.lib.internal.ScannerEngineLauncherFactory;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
 import org.sonarsource.scanner.lib.internal.cache.FileCache;
+import org.sonarsource.scanner.lib.internal.http.HttpRemoteCache;
 import org.sonarsource.scanner.lib.internal.http.ServerConnection;
 import org.sonarsource.scanner.lib.internal.util.VersionUtils;
 
@@ -105,7 +114,6 @@ public class ScannerEngineBootstrapper {
     var isSonarCloud = isSonarCloud(properties);
     var isSimulation = properties.containsKey(InternalProperties.SCANNER_DUMP_TO_FILE);
     var sonarUserHome = resolveSonarUserHome(properties);
-    var fileCache = FileCache.create(sonarUserHome);
     serverConnection.init(properties, sonarUserHome);
     String serverVersion = null;
     if (!isSonarCloud) {
@@ -114,13 +122,106 @@ public class ScannerEngineBootstrapper {
 
     if (isSimulation) {
       return new SimulationScannerEngineFacade(properties, isSonarCloud, serverVersion);
-    } else if (isSonarCloud || VersionUtils.isAtLeastIgnoringQualifier(serverVersion, SQ_VERSION_NEW_BOOTSTRAPPING)) {
-      var launcher = scannerEngineLauncherFactory.createLauncher(serverConnection, fileCache, properties);
-      return new NewScannerEngineFacade(properties, launcher, isSonarCloud, serverVersion);
-    } else {
-      var launcher = launcherFactory.createLauncher(serverConnection, fileCache);
-      return new InProcessScannerEngineFacade(properties, launcher, false, serverVersion);
     }
+    // the cache holds leases and threads until the facade is closed, so it is only created once it is needed
+    var fileCache = FileCache.create(sonarUserHome, properties, HttpRemoteCache.create(properties, sonarUserHome));
+    try {
+      new CacheJanitor(fileCache.getDir()).startIfDue();
+      if (isSonarCloud || VersionUtils.isAtLeastIgnoringQualifier(serverVersion, SQ_VERSION_NEW_BOOTSTRAPPING)) {
+        var launcher = scannerEngineLauncherFactory.createLauncher(serverConnection, fileCache, properties);
+        return new NewScannerEngineFacade(properties, launcher, fileCache, isSonarCloud, serverVersion);
+      } else {
+        var launcher = launcherFactory.createLauncher(serverConnection, fileCache);
+        return new InProcessScannerEngineFacade(properties, launcher, fileCache, false, serverVersion);
+      }
+    } catch (RuntimeException e) {
+      fileCache.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Populate the user cache ahead of time, for example when baking a Docker image or warming up a CI agent, so that the
+   * next analyses only get cache hits. The JRE is downloaded and extracted for each of the given platforms, and the scanner
+   * engine is downloaded. Nothing is launched.
+   *
+   * @param platforms formatted as {@code <os>/<arch>}, for example {@code linux/x64}. If none is given, the platform of
+   *                  the current machine is used.
+   */
+  public List<PrefetchedArtifact> prefetch(String... platforms) {
+    List<String[]> osAndArchs = Arrays.stream(platforms).map(ScannerEngineBootstrapper::parsePlatform)
+      .collect(Collectors.toCollection(ArrayList::new));
+    initBootstrapDefaultValues();
+    var properties = Map.copyOf(bootstrapProperties);
+    if (osAndArchs.isEmpty()) {
+      osAndArchs.add(new String[] {properties.get(SCANNER_OS), properties.get(SCANNER_ARCH)});
+    }
+    var sonarUserHome = resolveSonarUserHome(properties);
+    serverConnection.init(properties, sonarUserHome);
+    if (!isSonarCloud(properties)) {
+      var serverVersion = getServerVersion(serverConnection, false, properties);
+      if (!VersionUtils.isAtLeastIgnoringQualifier(serverVersion, SQ_VERSION_NEW_BOOTSTRAPPING)) {
+        LOG.warn("Prefetching requires SonarQube {} or later, the server version is {}", SQ_VERSION_NEW_BOOTSTRAPPING, serverVersion);
+        return List.of();
+      }
+    }
+    List<PrefetchedArtifact> artifacts = new ArrayList<>();
+    try (var fileCache = FileCache.create(sonarUserHome, properties, HttpRemoteCache.create(properties, sonarUserHome))) {
+      for (String[] osAndArch : osAndArchs) {
+        long start = System.nanoTime();
+        scannerEngineLauncherFactory.prefetchJre(serverConnection, fileCache, osAndArch[0], osAndArch[1])
+          .ifPresent(archive -> artifacts.add(prefetched("JRE " + osAndArch[0] + "/" + osAndArch[1], fileCache, archive, start)));
+      }
+      long start = System.nanoTime();
+      artifacts.add(prefetched("scanner engine", fileCache, scannerEngineLauncherFactory.prefetchScannerEngine(serverConnection, fileCache), start));
+    }
+    return artifacts;
+  }
+
+  private static String[] parsePlatform(String platform) {
+    var osAndArch = platform.split("/", -1);
+    if (osAndArch.length != 2 || osAndArch[0].isBlank() || osAndArch[1].isBlank()) {
+      throw new IllegalArgumentException("Invalid platform '" + platform + "', expected <os>/<arch>");
+    }
+    return osAndArch;
+  }
+
+  private static PrefetchedArtifact prefetched(String name, FileCache fileCache, CachedFile cachedFile, long startNanos) {
+    long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    long bytesFetched = cachedFile.isCacheHit() ? 0L : fileCache.getFileSize(cachedFile.getPathInCache());
+    LOG.info("Prefetched {} in {} ms, {} downloaded", name, durationMillis, FileUtils.byteCountToDisplaySize(bytesFetched));
+    var hash = cachedFile.getPathInCache().getParent().getFileName().toString();
+    return new PrefetchedArtifact(name, hash, cachedFile.isCacheHit(), bytesFetched, durationMillis);
+  }
+
+  /**
+   * Pack entries of the user cache, for example the {@link PrefetchedArtifact#getHash() artifacts} put in the cache by
+   * {@link #prefetch(String...)}, into a single bundle file. It can then be copied to machines that can't reach the server,
+   * and imported there with {@link #importCacheBundle(Path)}. Nothing is downloaded.
+   *
+   * @param hashes hashes of the entries to export
+   */
+  public void exportCacheBundle(Collection<String> hashes, Path bundleFile) {
+    try (var fileCache = createUserCache()) {
+      fileCache.exportBundle(hashes, bundleFile);
+    }
+  }
+
+  /**
+   * Install in the user cache the entries of a bundle created by {@link #exportCacheBundle(Collection, Path)}. The hashes
+   * of all the files are verified first, and nothing is installed if any of them is wrong. The server is not contacted.
+   *
+   * @return the number of installed entries, entries already in the cache are not counted
+   */
+  public int importCacheBundle(Path bundleFile) {
+    try (var fileCache = createUserCache()) {
+      return fileCache.importBundle(bundleFile);
+    }
+  }
+
+  private FileCache createUserCache() {
+    var properties = Map.copyOf(bootstrapProperties);
+    return FileCache.create(resolveSonarUserHome(properties), properties);
   }
 
   private static Path resolveSonarUserHome(Map<String, String> properties) {
@@ -21,6 +21,7 @@ package org.sonarsource.scanner.lib;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import javax.annotation.Nullable;
 import org.sonarsource.scanner.lib.internal.JreCacheHit;
 
@@ -70,6 +71,13 @@ public abstract class ScannerEngineFacade implements AutoCloseable {
 
   abstract boolean doAnalyze(Map<String, String> allProps);
 
+  /**
+   * Statistics of the user cache, empty when the scanner engine was not taken from the cache, for example in simulation mode.
+   */
+  public Optional<UserCacheStatistics> getCacheStatistics() {
+    return Optional.empty();
+  }
+
   private static void initAnalysisProperties(Map<String, String> p) {
     new Dirs().init(p);
   }
@@ -115,4 +115,58 @@ public final class ScannerProperties {
    * Java options to be used by the scanner-engine.
    */
   public static final String SCANNER_JAVA_OPTS = "sonar.scanner.javaOpts";
+
+  /**
+   * Whether a Class Data Sharing archive of the scanner-engine is created in the user cache on the first run, and used on
+   * the next runs to start it faster. The first run is slower, so it is only worth enabling when the user cache is kept
+   * between runs. Requires Java 17 or later. Disabled by default.
+   */
+  public static final String SCANNER_CLASS_DATA_SHARING = "sonar.scanner.classDataSharing";
+
+  /**
+   * Whether the scanner-engine is launched from its jar expanded once in the user cache, so that its classes are not
+   * inflated again on each run. It replaces {@link #SCANNER_CLASS_DATA_SHARING}, which needs the jar. Disabled by default.
+   */
+  public static final String SCANNER_EXPLODED_ENGINE = "sonar.scanner.explodedEngine";
+
+  /**
+   * Maximum size of the user cache, for example 10GB. Least recently used entries are evicted when it is exceeded.
+   * Unlimited by default.
+   */
+  public static final String SCANNER_CACHE_MAX_SIZE = "sonar.scanner.cacheMaxSize";
+
+  /**
+   * Comma-separated list of read-only caches, searched in order before the user cache. They have the same layout as the
+   * user cache, and their entries are used in place.
+   */
+  public static final String SCANNER_READ_ONLY_CACHES = "sonar.scanner.readOnlyCaches";
+
+  /**
+   * Delete the provisioned JRE archives once extracted, to halve the disk usage of the user cache. They are downloaded again
+   * only if the extracted files are damaged. Disabled by default.
+   */
+  public static final String SCANNER_DROP_ARCHIVES = "sonar.scanner.dropArchivesAfterExtraction";
+
+  /**
+   * Local directory used in place of the user cache, which is then only read and written back in the background. Useful
+   * when the user home is on a network filesystem, which is detected automatically for NFS and SMB. The directory used by
+   * default in that case is in the temp directory, and must only be accessible by the current user.
+   */
+  public static final String SCANNER_CACHE_STAGING_DIR = "sonar.scanner.cacheStagingDir";
+
+  /**
+   * URL of a remote cache, queried by hash before downloading the JRE and the scanner engine from the server. See
+   * {@link #SCANNER_REMOTE_CACHE_PUSH} and {@link #SCANNER_REMOTE_CACHE_TOKEN}.
+   */
+  public static final String SCANNER_REMOTE_CACHE_URL = "sonar.scanner.remoteCacheUrl";
+
+  /**
+   * Whether the files downloaded from the server are pushed to the remote cache. Disabled by default.
+   */
+  public static final String SCANNER_REMOTE_CACHE_PUSH = "sonar.scanner.remoteCachePush";
+
+  /**
+   * Token sent as a bearer token to the remote cache, if it requires authentication.
+   */
+  public static final String SCANNER_REMOTE_CACHE_TOKEN = "sonar.scanner.remoteCacheToken";
 }
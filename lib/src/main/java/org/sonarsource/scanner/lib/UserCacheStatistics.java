@@ -0,0 +1,87 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib;
+
+import org.sonarsource.scanner.lib.internal.cache.CacheStatistics;
+
+/**
+ * Counters about the usage of the user cache, accumulated by all the processes that share it. This is a snapshot, taken
+ * when {@link ScannerEngineFacade#getCacheStatistics()} is called.
+ */
+public class UserCacheStatistics {
+
+  private final long hits;
+  private final long misses;
+  private final long bytesDownloaded;
+  private final long downloadMillis;
+  private final long bytesExtracted;
+  private final long extractionMillis;
+  private final long evictions;
+
+  UserCacheStatistics(CacheStatistics statistics) {
+    this.hits = statistics.getHits();
+    this.misses = statistics.getMisses();
+    this.bytesDownloaded = statistics.getBytesDownloaded();
+    this.downloadMillis = statistics.getDownloadMillis();
+    this.bytesExtracted = statistics.getBytesExtracted();
+    this.extractionMillis = statistics.getExtractionMillis();
+    this.evictions = statistics.getEvictions();
+  }
+
+  /**
+   * Number of files that were found in the cache, including the read-only caches.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Number of files that had to be downloaded.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getBytesDownloaded() {
+    return bytesDownloaded;
+  }
+
+  public long getDownloadMillis() {
+    return downloadMillis;
+  }
+
+  /**
+   * Size of the archives once extracted, for example the JREs.
+   */
+  public long getBytesExtracted() {
+    return bytesExtracted;
+  }
+
+  public long getExtractionMillis() {
+    return extractionMillis;
+  }
+
+  /**
+   * Number of entries removed to keep the cache under its maximum size.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.Utils;
+import org.sonarsource.scanner.lib.internal.cache.BlobStore;
+import org.sonarsource.scanner.lib.internal.cache.CacheLayout;
+
+/**
+ * Reclaim the files left behind by interrupted runs: temp files of downloads and bundle imports, temp directories of
+ * extractions, lock files of extractions and downloads, and copies of the legacy batch jar in the system temp dir
+ * (see {@link TempCleaning}). Blobs that are not linked anymore are deleted too (see {@link BlobStore}), as well as
+ * records of JRE sanity checks of executables that changed (see {@link JreSanityCheck}). Entries of both layouts of the
+ * cache are cleaned (see {@link CacheLayout}).
+ * <p>
+ * It runs at most once a day on a background thread, so that it is never on the critical path of an analysis. The time of
+ * the last run is recorded in a marker file of the cache. Only files older than a day are deleted, and lock
+ * files only if nobody holds them.
+ */
+public class CacheJanitor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheJanitor.class);
+
+  static final String MARKER_FILE = "_janitor";
+  static final long INTERVAL_MILLIS = TempCleaning.ONE_DAY_IN_MILLISECONDS;
+  static final long MAX_AGE_MILLIS = TempCleaning.ONE_DAY_IN_MILLISECONDS;
+
+  private final Path cacheDir;
+  private final TempCleaning tempCleaning;
+
+  public CacheJanitor(Path cacheDir) {
+    this(cacheDir, new TempCleaning());
+  }
+
+  /**
+   * For unit tests
+   */
+  CacheJanitor(Path cacheDir, TempCleaning tempCleaning) {
+    this.cacheDir = cacheDir;
+    this.tempCleaning = tempCleaning;
+  }
+
+  /**
+   * Start the cleaning on a daemon thread if it did not run since {@link #INTERVAL_MILLIS}.
+   *
+   * @return true if the cleaning was started
+   */
+  public boolean startIfDue() {
+    if (!claimRun()) {
+      return false;
+    }
+    var thread = new Thread(this::clean, "sonar-cache-janitor");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  /**
+   * Concurrent processes race to lock the marker file, which contains the time of the last run. Only the one that gets
+   * the lock and sees an old time runs.
+   */
+  boolean claimRun() {
+    var markerFile = cacheDir.resolve(MARKER_FILE);
+    try (var channel = FileChannel.open(markerFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      var lock = channel.tryLock()) {
+      if (lock == null) {
+        return false;
+      }
+      long now = System.currentTimeMillis();
+      if (readLastRun(channel) > now - INTERVAL_MILLIS) {
+        return false;
+      }
+      channel.truncate(0).write(ByteBuffer.wrap(Long.toString(now).getBytes(StandardCharsets.US_ASCII)), 0);
+      return true;
+    } catch (IOException | OverlappingFileLockException e) {
+      LOG.debug("Unable to claim the cleaning of the user cache", e);
+      return false;
+    }
+  }
+
+  private static long readLastRun(FileChannel channel) throws IOException {
+    var buffer = ByteBuffer.allocate(32);
+    channel.read(buffer, 0);
+    try {
+      return Long.parseLong(new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).trim());
+    } catch (NumberFormatException e) {
+      return 0L;
+    }
+  }
+
+  void clean() {
+    LOG.debug("Start cleaning the user cache {}", cacheDir);
+    long cutoff = System.currentTimeMillis() - MAX_AGE_MILLIS;
+    var tmpDir = cacheDir.resolve("_tmp");
+    if (Files.isDirectory(tmpDir)) {
+      deleteOld(list(tmpDir, p -> true), cutoff);
+    }
+    for (Path hashDir : CacheLayout.listHashDirs(cacheDir)) {
+      // temp directories of extractions, see JavaRunnerFactory
+      deleteOld(list(hashDir, p -> Files.isDirectory(p) && p.getFileName().toString().startsWith("jre")
+        && !p.getFileName().toString().endsWith("_unzip")), cutoff);
+      list(hashDir, p -> p.getFileName().toString().endsWith(".lock")).stream()
+        .filter(p -> lastModifiedTime(p) < cutoff)
+        .forEach(CacheJanitor::deleteIfNotLocked);
+    }
+    new BlobStore(cacheDir).deleteUnused(cutoff);
+    JreSanityCheck.deleteStale(cacheDir);
+    tempCleaning.clean();
+    LOG.debug("User cache cleaning done");
+  }
+
+  private static void deleteOld(List<Path> paths, long cutoff) {
+    paths.stream()
+      .filter(p -> lastModifiedTime(p) < cutoff)
+      .forEach(p -> {
+        LOG.debug("Delete orphan {}", p);
+        Utils.deleteQuietly(p);
+      });
+  }
+
+  private static void deleteIfNotLocked(Path lockFile) {
+    try (var channel = FileChannel.open(lockFile, StandardOpenOption.WRITE); var lock = channel.tryLock()) {
+      if (lock != null) {
+        LOG.debug("Delete orphan {}", lockFile);
+        Files.delete(lockFile);
+      }
+    } catch (IOException | OverlappingFileLockException e) {
+      LOG.debug("Unable to delete {}", lockFile, e);
+    }
+  }
+
+  private static List<Path> list(Path dir, Predicate<Path> filter) {
+    try (Stream<Path> paths = Files.list(dir)) {
+      return paths.filter(filter).collect(Collectors.toList());
+    } catch (IOException e) {
+      LOG.debug("Unable to list {}", dir, e);
+      return List.of();
+    }
+  }
+
+  private static long lastModifiedTime(Path file) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis();
+    } catch (IOException e) {
+      // ignore this file
+      return System.currentTimeMillis();
+    }
+  }
+}
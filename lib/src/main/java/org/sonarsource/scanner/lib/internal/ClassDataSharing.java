@@ -0,0 +1,201 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.ScannerProperties;
+import org.sonarsource.scanner.lib.Utils;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
+
+/**
+ * Dynamic Class Data Sharing archive of the scanner engine, so that the classes loaded during the startup of the engine are
+ * mapped from the archive rather than parsed and verified again on each run.
+ * <p>
+ * The archive is stored in the user cache, next to the scanner engine, and named after the {@link FileStamp stamps} of the
+ * java executable and of the scanner engine. The first run with a given pair dumps the archive on exit, and the following
+ * runs use it. The JVM validates the archive itself, and silently runs without it if it is stale or rejected.
+ * <p>
+ * The dump makes the first run slower, which only pays off when the user cache is kept between runs, so it is enabled with
+ * {@link ScannerProperties#SCANNER_CLASS_DATA_SHARING}. It stays disabled when the Java options already configure class data
+ * sharing.
+ */
+class ClassDataSharing {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClassDataSharing.class);
+
+  static final String ARCHIVES_DIR_SUFFIX = "_cds";
+  static final int MIN_JAVA_VERSION = 17;
+  private static final String ARCHIVE_EXTENSION = ".jsa";
+  private static final int KEY_LENGTH = 32;
+  // the JVM prints its CDS warnings to the standard output, which is expected to contain only the logs of the engine
+  private static final String LOGS_OFF = "-Xlog:cds*=off";
+  private static final List<String> CDS_OPTIONS = Arrays.asList("-Xshare", "SharedArchiveFile", "ArchiveClassesAtExit");
+
+  private final FileCache fileCache;
+  private final Path scannerEngineJar;
+  private final Path archive;
+  @Nullable
+  private final Path newArchive;
+
+  private ClassDataSharing(FileCache fileCache, Path scannerEngineJar, Path archive, @Nullable Path newArchive) {
+    this.fileCache = fileCache;
+    this.scannerEngineJar = scannerEngineJar;
+    this.archive = archive;
+    this.newArchive = newArchive;
+  }
+
+  /**
+   * @return null if class data sharing is disabled or not supported by the JRE
+   */
+  @CheckForNull
+  static ClassDataSharing create(FileCache fileCache, @Nullable Path javaExecutable, CachedFile scannerEngine, Map<String, String> properties) {
+    if (!Boolean.parseBoolean(properties.get(ScannerProperties.SCANNER_CLASS_DATA_SHARING))) {
+      return null;
+    }
+    var javaOpts = properties.get(ScannerProperties.SCANNER_JAVA_OPTS);
+    if (javaOpts != null && CDS_OPTIONS.stream().anyMatch(javaOpts::contains)) {
+      LOG.debug("Class data sharing is configured by the Java options");
+      return null;
+    }
+    var jreKey = FileStamp.of(javaExecutable);
+    if (jreKey == null || !isSupported(javaExecutable)) {
+      return null;
+    }
+    var jar = scannerEngine.getPathInCache();
+    var jarKey = FileStamp.of(jar.toAbsolutePath());
+    if (jarKey == null) {
+      return null;
+    }
+    var archivesDir = archivesDir(fileCache, jar);
+    var prefix = jreKey.substring(0, KEY_LENGTH);
+    var archive = archivesDir.resolve(prefix + "-" + jarKey.substring(0, KEY_LENGTH) + ARCHIVE_EXTENSION);
+    if (Files.isRegularFile(archive)) {
+      LOG.debug("Use the class data sharing archive {}", archive);
+      return new ClassDataSharing(fileCache, jar, archive, null);
+    }
+    try {
+      Files.createDirectories(archivesDir);
+      // the JVM creates the archive itself, only a unique name is reserved
+      var newArchive = Files.createTempFile(archivesDir, prefix, ".tmp");
+      Files.delete(newArchive);
+      LOG.debug("Create the class data sharing archive {}", archive);
+      return new ClassDataSharing(fileCache, jar, archive, newArchive);
+    } catch (IOException e) {
+      LOG.debug("Unable to create the class data sharing archive in {}", archivesDir, e);
+      return null;
+    }
+  }
+
+  private static Path archivesDir(FileCache fileCache, Path jar) {
+    var dir = fileCache.isReadOnly(jar) ? fileCache.getWritableDir(jar) : jar.getParent();
+    return dir.resolve(jar.getFileName() + ARCHIVES_DIR_SUFFIX);
+  }
+
+  /**
+   * Dynamic archives are built on top of the default CDS archive of the JRE, which not all distributions ship. Only the
+   * versions supported by the scanner engine, Java 17 and later, are considered.
+   */
+  static boolean isSupported(Path javaExecutable) {
+    try {
+      var javaHome = javaExecutable.toRealPath().getParent().getParent();
+      var release = new Properties();
+      try (var reader = Files.newBufferedReader(javaHome.resolve("release"))) {
+        release.load(reader);
+      }
+      var version = release.getProperty("JAVA_VERSION", "").replace("\"", "");
+      return featureVersion(version) >= MIN_JAVA_VERSION
+        && (Files.exists(javaHome.resolve("lib/server/classes.jsa")) || Files.exists(javaHome.resolve("bin/server/classes.jsa")));
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Unable to read the version of the JRE {}", javaExecutable, e);
+      return false;
+    }
+  }
+
+  private static int featureVersion(String version) {
+    var feature = version.startsWith("1.") ? version.substring(2) : version;
+    var end = 0;
+    while (end < feature.length() && Character.isDigit(feature.charAt(end))) {
+      end++;
+    }
+    return end == 0 ? 0 : Integer.parseInt(feature.substring(0, end));
+  }
+
+  List<String> getJvmArgs() {
+    if (newArchive != null) {
+      return Arrays.asList("-XX:ArchiveClassesAtExit=" + newArchive, LOGS_OFF);
+    }
+    return Arrays.asList("-XX:SharedArchiveFile=" + archive, LOGS_OFF);
+  }
+
+  /**
+   * Keep the archive dumped by a successful run, and delete the archives made with the same JRE for a previous copy of the
+   * scanner engine.
+   */
+  void afterRun(boolean success) {
+    if (newArchive == null) {
+      return;
+    }
+    try {
+      if (!success || !Files.isRegularFile(newArchive) || Files.size(newArchive) == 0) {
+        LOG.debug("No class data sharing archive was created");
+        return;
+      }
+      // the JVM creates a read-only file, that could not be deleted on Windows
+      newArchive.toFile().setWritable(true);
+      Files.move(newArchive, archive, StandardCopyOption.ATOMIC_MOVE);
+      deleteOtherArchives();
+      fileCache.recordUsage(scannerEngineJar);
+    } catch (FileAlreadyExistsException e) {
+      // created concurrently by another process
+    } catch (IOException e) {
+      LOG.debug("Unable to store the class data sharing archive {}", archive, e);
+    } finally {
+      Utils.deleteQuietly(newArchive);
+    }
+  }
+
+  private void deleteOtherArchives() throws IOException {
+    var prefix = archive.getFileName().toString().substring(0, KEY_LENGTH);
+    try (Stream<Path> stream = Files.list(archive.getParent())) {
+      for (Path other : stream.collect(Collectors.toList())) {
+        var name = other.getFileName().toString();
+        if (name.startsWith(prefix) && name.endsWith(ARCHIVE_EXTENSION) && !other.equals(archive)) {
+          LOG.debug("Delete the stale class data sharing archive {}", other);
+          Utils.deleteQuietly(other);
+        }
+      }
+    }
+  }
+}
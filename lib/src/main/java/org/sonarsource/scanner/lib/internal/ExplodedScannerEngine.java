@@ -0,0 +1,133 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import javax.annotation.CheckForNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.ScannerProperties;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
+
+/**
+ * The scanner engine launched from its jar expanded once in the user cache, rather than with {@code -jar}, so that its
+ * classes are plain files kept in the page cache across runs instead of being inflated again on each run. The expanded
+ * directory is extracted and verified like the provisioned JREs, see {@link JavaRunnerFactory#extractArchive}.
+ * <p>
+ * The attributes of the manifest that only apply to {@code -jar} are translated to options of the JVM when possible,
+ * otherwise the jar is launched as is.
+ */
+class ExplodedScannerEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExplodedScannerEngine.class);
+
+  private static final String ADD_OPENS = "Add-Opens";
+  private static final String ADD_EXPORTS = "Add-Exports";
+  private static final List<String> UNSUPPORTED_ATTRIBUTES = List.of(Attributes.Name.CLASS_PATH.toString(), "Multi-Release",
+    "Launcher-Agent-Class");
+
+  private final List<String> launchArgs;
+
+  private ExplodedScannerEngine(List<String> launchArgs) {
+    this.launchArgs = launchArgs;
+  }
+
+  /**
+   * @param restoreJar downloads the scanner engine again if it was deleted since it was expanded
+   * @return null if disabled, or if the scanner engine can't be launched from a directory
+   */
+  @CheckForNull
+  static ExplodedScannerEngine create(FileCache fileCache, CachedFile scannerEngine, Map<String, String> properties, Runnable restoreJar) {
+    if (!Boolean.parseBoolean(properties.get(ScannerProperties.SCANNER_EXPLODED_ENGINE))) {
+      return null;
+    }
+    var jar = scannerEngine.getPathInCache();
+    Path classpath;
+    try {
+      classpath = JavaRunnerFactory.extractArchive(fileCache, jar, null, restoreJar);
+    } catch (IllegalStateException e) {
+      LOG.warn("Failed to expand the scanner engine, it is launched from its jar", e);
+      return null;
+    }
+    var manifest = readManifest(classpath);
+    if (manifest == null) {
+      LOG.debug("The scanner engine has no manifest, it is launched from its jar");
+      return null;
+    }
+    var attributes = manifest.getMainAttributes();
+    var mainClass = attributes.getValue(Attributes.Name.MAIN_CLASS);
+    var unsupported = UNSUPPORTED_ATTRIBUTES.stream().filter(name -> attributes.getValue(name) != null).findFirst();
+    if (mainClass == null || unsupported.isPresent()) {
+      LOG.debug("The manifest of the scanner engine requires to launch it from its jar");
+      return null;
+    }
+    var launchArgs = new ArrayList<String>();
+    addModuleOptions(launchArgs, "--add-opens=", attributes.getValue(ADD_OPENS));
+    addModuleOptions(launchArgs, "--add-exports=", attributes.getValue(ADD_EXPORTS));
+    launchArgs.add("-cp");
+    launchArgs.add(classpath.toAbsolutePath().toString());
+    launchArgs.add(mainClass);
+    return new ExplodedScannerEngine(launchArgs);
+  }
+
+  @CheckForNull
+  private static Manifest readManifest(Path classpath) {
+    var manifestFile = classpath.resolve(JarFile.MANIFEST_NAME);
+    if (!Files.isRegularFile(manifestFile)) {
+      return null;
+    }
+    try (var in = Files.newInputStream(manifestFile)) {
+      return new Manifest(in);
+    } catch (IOException e) {
+      LOG.debug("Unable to read {}", manifestFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * @param packages space separated list of {@code <module>/<package>}, as in the manifest
+   */
+  private static void addModuleOptions(List<String> args, String option, @CheckForNull String packages) {
+    if (packages == null) {
+      return;
+    }
+    for (String modulePackage : packages.trim().split("\\s+")) {
+      if (!modulePackage.isEmpty()) {
+        args.add(option + modulePackage + "=ALL-UNNAMED");
+      }
+    }
+  }
+
+  /**
+   * Arguments of the JVM replacing {@code -jar <scanner engine>}.
+   */
+  List<String> getLaunchArgs() {
+    return launchArgs;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes, modification times and checksums of the files of an extracted archive. It is used to detect, at a low cost,
+ * files that were deleted or modified after the extraction, so that only them are extracted again.
+ */
+class ExtractionManifest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExtractionManifest.class);
+
+  static final String MANIFEST_SUFFIX = ".manifest";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @SerializedName("files")
+  private final List<FileEntry> files;
+
+  private transient boolean stale;
+
+  private ExtractionManifest(List<FileEntry> files) {
+    this.files = files;
+  }
+
+  /**
+   * Manifest of all the regular files of a directory.
+   */
+  static ExtractionManifest of(Path dir) throws IOException {
+    return of(dir, Map.of());
+  }
+
+  /**
+   * @param knownChecksums checksums already computed for some of the files, by path. The others are read to compute theirs.
+   */
+  static ExtractionManifest of(Path dir, Map<Path, Long> knownChecksums) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      List<Path> regularFiles = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+      List<FileEntry> entries = new ArrayList<>(regularFiles.size());
+      for (Path file : regularFiles) {
+        var checksum = knownChecksums.get(file);
+        entries.add(FileEntry.of(dir, file, checksum != null ? checksum : checksum(file)));
+      }
+      return new ExtractionManifest(entries);
+    }
+  }
+
+  static Path manifestFile(Path extractedDir) {
+    return extractedDir.resolveSibling(extractedDir.getFileName() + MANIFEST_SUFFIX);
+  }
+
+  static Optional<ExtractionManifest> read(Path manifestFile) {
+    if (!Files.exists(manifestFile)) {
+      return Optional.empty();
+    }
+    try {
+      var manifest = new Gson().fromJson(Files.readString(manifestFile), ExtractionManifest.class);
+      return Optional.ofNullable(manifest).filter(m -> m.files != null);
+    } catch (IOException | JsonParseException e) {
+      LOG.debug("Unable to read the manifest {}", manifestFile, e);
+      return Optional.empty();
+    }
+  }
+
+  void write(Path manifestFile) throws IOException {
+    var tempFile = Files.createTempFile(manifestFile.getParent(), manifestFile.getFileName().toString(), null);
+    Files.write(tempFile, new Gson().toJson(this).getBytes(StandardCharsets.UTF_8));
+    Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    stale = false;
+  }
+
+  /**
+   * Only the size and the modification time of files are checked. The checksum of a file is computed only if its modification
+   * time changed, in which case the manifest becomes {@link #isStale() stale}.
+   *
+   * @return the paths, relative to the given directory, of the files that are missing or damaged
+   */
+  Set<String> findDamagedFiles(Path dir) {
+    Set<String> damaged = new TreeSet<>();
+    for (FileEntry entry : files) {
+      var file = dir.resolve(entry.path);
+      try {
+        if (Files.size(file) != entry.size) {
+          damaged.add(entry.path);
+        } else if (Files.getLastModifiedTime(file).toMillis() != entry.lastModified) {
+          if (checksum(file) == entry.checksum) {
+            entry.lastModified = Files.getLastModifiedTime(file).toMillis();
+            stale = true;
+          } else {
+            damaged.add(entry.path);
+          }
+        }
+      } catch (NoSuchFileException e) {
+        damaged.add(entry.path);
+      } catch (IOException e) {
+        LOG.debug("Unable to check {}", file, e);
+        damaged.add(entry.path);
+      }
+    }
+    return damaged;
+  }
+
+  /**
+   * Update the entries of files that were extracted again.
+   */
+  void update(Path dir, Collection<String> paths) throws IOException {
+    for (int i = 0; i < files.size(); i++) {
+      if (paths.contains(files.get(i).path)) {
+        var file = dir.resolve(files.get(i).path);
+        files.set(i, FileEntry.of(dir, file, checksum(file)));
+      }
+    }
+    stale = true;
+  }
+
+  long getTotalSize() {
+    return files.stream().mapToLong(f -> f.size).sum();
+  }
+
+  boolean isStale() {
+    return stale;
+  }
+
+  static String relativePath(Path dir, Path file) {
+    return dir.relativize(file).toString().replace('\\', '/');
+  }
+
+  private static long checksum(Path file) throws IOException {
+    var crc = new CRC32C();
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    return crc.getValue();
+  }
+
+  private static class FileEntry {
+    @SerializedName("path")
+    private final String path;
+    @SerializedName("size")
+    private final long size;
+    @SerializedName("lastModified")
+    private long lastModified;
+    @SerializedName("checksum")
+    private final long checksum;
+
+    private FileEntry(String path, long size, long lastModified, long checksum) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.checksum = checksum;
+    }
+
+    private static FileEntry of(Path dir, Path file, long checksum) throws IOException {
+      return new FileEntry(relativePath(dir, file), Files.size(file), Files.getLastModifiedTime(file).toMillis(), checksum);
+    }
+  }
+}
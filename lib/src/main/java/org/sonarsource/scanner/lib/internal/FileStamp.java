@@ -0,0 +1,67 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.annotation.CheckForNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Identity of a file that changes when the file is replaced or modified, computed from its real path, its size and its
+ * modification time, without reading it.
+ */
+class FileStamp {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileStamp.class);
+
+  private FileStamp() {
+    // only static methods
+  }
+
+  /**
+   * @return a SHA-256 hex string, or null if the file is not designated by an absolute path, or can't be read
+   */
+  @CheckForNull
+  static String of(@CheckForNull Path file) {
+    if (file == null || !file.isAbsolute()) {
+      return null;
+    }
+    try {
+      var realPath = file.toRealPath();
+      var attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+      var digest = MessageDigest.getInstance("SHA-256").digest((realPath + "|" + attributes.size() + "|"
+        + attributes.lastModifiedTime().toMillis()).getBytes(StandardCharsets.UTF_8));
+      return String.format("%064x", new BigInteger(1, digest));
+    } catch (IOException e) {
+      LOG.debug("Unable to read the attributes of {}", file, e);
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+}
@@ -39,19 +39,17 @@ public class IsolatedLauncherFactory {
   private static final Logger LOG = LoggerFactory.getLogger(IsolatedLauncherFactory.class);
 
   static final String ISOLATED_LAUNCHER_IMPL = "org.sonarsource.scanner.lib.internal.batch.BatchIsolatedLauncher";
-  private final TempCleaning tempCleaning;
   private final String launcherImplClassName;
 
   /**
    * For unit tests
    */
-  IsolatedLauncherFactory(String isolatedLauncherClassName, TempCleaning tempCleaning) {
-    this.tempCleaning = tempCleaning;
+  IsolatedLauncherFactory(String isolatedLauncherClassName) {
     this.launcherImplClassName = isolatedLauncherClassName;
   }
 
   public IsolatedLauncherFactory() {
-    this(ISOLATED_LAUNCHER_IMPL, new TempCleaning());
+    this(ISOLATED_LAUNCHER_IMPL);
   }
 
   private IsolatedClassloader createClassLoader(List<Path> jarFiles, ClassloadRules maskRules) {
@@ -75,7 +73,6 @@ public class IsolatedLauncherFactory {
       LOG.debug("Create isolated classloader...");
       var cl = createClassLoader(jarFiles.stream().map(CachedFile::getPathInCache).collect(Collectors.toList()), rules);
       IsolatedLauncher objProxy = IsolatedLauncherProxy.create(cl, IsolatedLauncher.class, launcherImplClassName);
-      tempCleaning.clean();
 
       return new IsolatedLauncherAndClassloader(objProxy, cl, jarFiles.stream().allMatch(CachedFile::isCacheHit));
     } catch (Exception e) {
@@ -23,22 +23,29 @@ import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 import com.google.gson.reflect.TypeToken;
 import java.io.BufferedReader;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +70,14 @@ public class JavaRunnerFactory {
   static final String API_PATH_JRE = "/analysis/jres";
   private static final String EXTENSION_ZIP = "zip";
   private static final String EXTENSION_GZ = "gz";
+  private static final String EXTENSION_XZ = "xz";
+  private static final String EXTENSION_ZSTD = "zst";
+  private static final String EXTENSION_JAR = "jar";
+  private static final long SPACE_CHECK_INTERVAL = 64L * 1024 * 1024;
+  // JRE zips have thousands of small files, inflated concurrently
+  private static final int UNZIP_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+  // extractions in progress in this JVM, by extracted directory
+  private static final ConcurrentMap<Path, CompletableFuture<Path>> EXTRACTIONS = new ConcurrentHashMap<>();
 
   private final System2 system;
   private final ProcessWrapperFactory processWrapperFactory;
@@ -82,9 +97,9 @@ public class JavaRunnerFactory {
     if (skipJreProvisioning) {
       LOG.info("JRE provisioning is disabled");
     } else {
-      var cachedFile = getJreFromServer(serverConnection, fileCache, properties, true);
-      if (cachedFile.isPresent()) {
-        return new JavaRunner(cachedFile.get().getPathInCache(), cachedFile.get().isCacheHit() ? JreCacheHit.HIT : JreCacheHit.MISS);
+      var jre = getJreFromServer(serverConnection, fileCache, properties.get(SCANNER_OS), properties.get(SCANNER_ARCH), true);
+      if (jre.isPresent()) {
+        return new JavaRunner(jre.get().javaExecutable, jre.get().archive.isCacheHit() ? JreCacheHit.HIT : JreCacheHit.MISS);
       }
     }
     String javaHome = system.getEnvironmentVariable("JAVA_HOME");
@@ -129,9 +144,16 @@ public class JavaRunnerFactory {
     }
   }
 
-  private static Optional<CachedFile> getJreFromServer(ServerConnection serverConnection, FileCache fileCache, Map<String, String> properties, boolean retry) {
-    String os = properties.get(SCANNER_OS);
-    String arch = properties.get(SCANNER_ARCH);
+  /**
+   * Download and extract the JRE for the given OS and architecture, without running it.
+   *
+   * @return the archive of the JRE in the cache, or empty if the server provides no JRE for this OS/architecture
+   */
+  public Optional<CachedFile> prefetchJre(ServerConnection serverConnection, FileCache fileCache, String os, String arch) {
+    return getJreFromServer(serverConnection, fileCache, os, arch, true).map(jre -> jre.archive);
+  }
+
+  private static Optional<ProvisionedJre> getJreFromServer(ServerConnection serverConnection, FileCache fileCache, String os, String arch, boolean retry) {
     LOG.info("JRE provisioning: os[{}], arch[{}]", os, arch);
 
     try {
@@ -140,15 +162,22 @@ public class JavaRunnerFactory {
         LOG.info("No JRE found for this OS/architecture");
         return Optional.empty();
       }
-      var cachedFile = fileCache.getOrDownload(jreMetadata.get().getFilename(), jreMetadata.get().getSha256(), "SHA-256",
-        new JreDownloader(serverConnection, jreMetadata.get()));
-      var extractedDirectory = extractArchive(cachedFile.getPathInCache());
-      return Optional.of(new CachedFile(extractedDirectory.resolve(jreMetadata.get().javaPath), cachedFile.isCacheHit()));
+      var metadata = jreMetadata.get();
+      var downloader = new JreDownloader(serverConnection, metadata, fileCache);
+      try {
+        var cachedFile = fileCache.getOrDownload(metadata.getFilename(), metadata.getSha256(), "SHA-256", downloader);
+        // only promoted once the hash of the archive is verified
+        var extractedDirectory = extractArchive(fileCache, cachedFile.getPathInCache(), downloader.takeExtraction(),
+          () -> fileCache.downloadAgain(metadata.getFilename(), metadata.getSha256(), "SHA-256", downloader));
+        return Optional.of(new ProvisionedJre(cachedFile, extractedDirectory.resolve(metadata.javaPath)));
+      } finally {
+        downloader.discardExtraction();
+      }
     } catch (HashMismatchException e) {
       if (retry) {
         // A new JRE might have been published between the metadata fetch and the download
         LOG.warn("Failed to get the JRE, retrying...");
-        return getJreFromServer(serverConnection, fileCache, properties, false);
+        return getJreFromServer(serverConnection, fileCache, os, arch, false);
       }
       throw e;
     }
@@ -166,6 +195,16 @@ public class JavaRunnerFactory {
     }
   }
 
+  private static class ProvisionedJre {
+    private final CachedFile archive;
+    private final Path javaExecutable;
+
+    private ProvisionedJre(CachedFile archive, Path javaExecutable) {
+      this.archive = archive;
+      this.javaExecutable = javaExecutable;
+    }
+  }
+
   static class JreMetadata extends ResourceMetadata {
     @SerializedName("id")
     private final String id;
@@ -179,72 +218,279 @@ public class JavaRunnerFactory {
     }
   }
 
-  private static Path extractArchive(Path cachedFile) {
-    String filename = cachedFile.getFileName().toString();
-    var destDir = cachedFile.getParent().resolve(filename + "_unzip");
-    var lockFile = cachedFile.getParent().resolve(filename + "_unzip.lock");
-    if (!Files.exists(destDir)) {
-      try (FileOutputStream out = new FileOutputStream(lockFile.toFile())) {
-        FileLock lock = createLockWithRetries(out.getChannel());
-        try {
-          // Recheck in case of concurrent processes
-          if (!Files.exists(destDir)) {
-            var tempDir = Files.createTempDirectory(cachedFile.getParent(), "jre");
-            extract(cachedFile, tempDir);
-            Files.move(tempDir, destDir);
-          }
-        } finally {
-          lock.release();
+  /**
+   * Extract an archive of the cache next to it, in a {@code _unzip} directory, or in the writable cache if the archive was
+   * found in a read-only cache. The extracted files are recorded in a {@link ExtractionManifest manifest}, and the ones that
+   * are later found missing or damaged are extracted again.
+   * <p>
+   * Concurrent extractions are not serialized with a lock: each process extracts in its own temp directory, and the first one
+   * to rename it to the final directory wins. Threads of the same JVM wait for the extraction already in progress.
+   *
+   * @param extracted      the archive already extracted while it was downloaded, if any. It is moved in place of the
+   *                       extraction, or deleted.
+   * @param restoreArchive downloads the archive again if it was dropped after a previous extraction
+   */
+  static Path extractArchive(FileCache fileCache, Path cachedFile, @Nullable Path extracted, Runnable restoreArchive) {
+    try {
+      String filename = cachedFile.getFileName().toString();
+      var extractionDir = cachedFile.getParent();
+      if (fileCache.isReadOnly(cachedFile)) {
+        var readOnlyDestDir = extractionDir.resolve(filename + "_unzip");
+        if (Files.exists(readOnlyDestDir) && !hasDamagedFiles(readOnlyDestDir)) {
+          return readOnlyDestDir;
         }
+        // The archive is used in place, but it is extracted in the writable cache
+        extractionDir = fileCache.getWritableDir(cachedFile);
+      }
+      var destDir = extractionDir.resolve(filename + "_unzip");
+      if (Files.exists(destDir) && !needsRepair(destDir)) {
+        return destDir;
+      }
+      var extraction = new CompletableFuture<Path>();
+      var inProgress = EXTRACTIONS.putIfAbsent(destDir, extraction);
+      if (inProgress != null) {
+        return awaitExtraction(inProgress);
+      }
+      try {
+        extractOrRepair(fileCache, cachedFile, destDir, extracted, restoreArchive);
+        extraction.complete(destDir);
       } catch (IOException e) {
-        throw new IllegalStateException("Failed to extract archive", e);
+        var failure = new IllegalStateException("Failed to extract archive", e);
+        extraction.completeExceptionally(failure);
+        throw failure;
+      } catch (RuntimeException e) {
+        extraction.completeExceptionally(e);
+        throw e;
       } finally {
-        deleteQuietly(lockFile);
+        EXTRACTIONS.remove(destDir, extraction);
+      }
+      return destDir;
+    } finally {
+      if (extracted != null && Files.exists(extracted)) {
+        deleteQuietly(extracted);
       }
     }
-    return destDir;
   }
 
-  private static FileLock createLockWithRetries(FileChannel channel) throws IOException {
-    int tryCount = 0;
-    while (tryCount < 10) {
-      tryCount++;
-      try {
-        return channel.lock();
-      } catch (OverlappingFileLockException ofle) {
-        // ignore overlapping file exception
+  private static Path awaitExtraction(CompletableFuture<Path> extraction) {
+    try {
+      return extraction.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
       }
-      try {
-        Thread.sleep(200L * tryCount);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+      throw e;
+    }
+  }
+
+  private static void extractOrRepair(FileCache fileCache, Path cachedFile, Path destDir, @Nullable Path extracted, Runnable restoreArchive)
+    throws IOException {
+    // Recheck in case of concurrent threads
+    if (!Files.exists(destDir)) {
+      long start = System.nanoTime();
+      var tempDir = extracted != null ? extracted : extractToTempDir(fileCache, cachedFile, destDir, restoreArchive);
+      if (tempDir == null) {
+        return;
+      }
+      // before the manifest, as linked files get the modification time of the existing blob
+      var checksums = fileCache.deduplicate(tempDir);
+      var manifest = ExtractionManifest.of(tempDir, checksums);
+      if (!moveAtomically(tempDir, destDir)) {
+        LOG.debug("The archive {} was extracted concurrently by another process", cachedFile.getFileName());
+        deleteQuietly(tempDir);
+        return;
+      }
+      manifest.write(ExtractionManifest.manifestFile(destDir));
+      fileCache.recordExtraction(manifest.getTotalSize(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      fileCache.recordUsage(cachedFile);
+    } else {
+      repair(cachedFile, destDir, restoreArchive);
+    }
+    // Only by the thread that extracted or repaired the directory, and not on a plain cache hit, so that an archive is not
+    // dropped while it is read by another thread of this JVM
+    fileCache.dropArchive(cachedFile);
+  }
+
+  /**
+   * @return null if the extraction failed because another process extracted the archive in the meantime, and dropped it
+   */
+  @CheckForNull
+  private static Path extractToTempDir(FileCache fileCache, Path cachedFile, Path destDir, Runnable restoreArchive) throws IOException {
+    restoreIfDropped(cachedFile, restoreArchive);
+    long uncompressedSize = CompressionUtils.uncompressedSize(cachedFile);
+    if (uncompressedSize > 0) {
+      fileCache.ensureFreeSpace(destDir.getParent(), uncompressedSize);
+    }
+    // next to the final directory, so that it can be renamed
+    var tempDir = Files.createTempDirectory(destDir.getParent(), "jre");
+    try {
+      extract(cachedFile, tempDir, name -> true);
+      return tempDir;
+    } catch (IOException | RuntimeException e) {
+      deleteQuietly(tempDir);
+      if (Files.isDirectory(destDir)) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return false if the target directory was created by another process
+   */
+  private static boolean moveAtomically(Path dir, Path targetDir) throws IOException {
+    try {
+      Files.move(dir, targetDir, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException e) {
+      // depending on the platform, FileAlreadyExistsException or DirectoryNotEmptyException
+      if (Files.isDirectory(targetDir)) {
+        return false;
       }
+      throw e;
     }
-    throw new IOException("Unable to get lock after " + tryCount + " tries");
   }
 
-  private static void extract(Path compressedFile, Path targetDir) throws IOException {
+  /**
+   * Extracted directories without manifest were created by older versions, and are trusted.
+   */
+  private static boolean needsRepair(Path extractedDir) {
+    var manifest = ExtractionManifest.read(ExtractionManifest.manifestFile(extractedDir));
+    return manifest.isPresent() && (!manifest.get().findDamagedFiles(extractedDir).isEmpty() || manifest.get().isStale());
+  }
+
+  private static boolean hasDamagedFiles(Path extractedDir) {
+    var manifest = ExtractionManifest.read(ExtractionManifest.manifestFile(extractedDir));
+    return manifest.isPresent() && !manifest.get().findDamagedFiles(extractedDir).isEmpty();
+  }
+
+  private static void repair(Path cachedFile, Path extractedDir, Runnable restoreArchive) throws IOException {
+    var manifestFile = ExtractionManifest.manifestFile(extractedDir);
+    var manifest = ExtractionManifest.read(manifestFile);
+    if (manifest.isEmpty()) {
+      return;
+    }
+    Set<String> damagedFiles = manifest.get().findDamagedFiles(extractedDir);
+    if (!damagedFiles.isEmpty()) {
+      LOG.warn("{} missing or damaged files in {}, extracting them again", damagedFiles.size(), extractedDir);
+      restoreIfDropped(cachedFile, restoreArchive);
+      replaceFiles(cachedFile, extractedDir, damagedFiles);
+      manifest.get().update(extractedDir, damagedFiles);
+    }
+    if (manifest.get().isStale()) {
+      manifest.get().write(manifestFile);
+    }
+  }
+
+  private static void restoreIfDropped(Path cachedFile, Runnable restoreArchive) {
+    if (!Files.exists(cachedFile)) {
+      LOG.info("The archive {} was dropped after its extraction, downloading it again", cachedFile.getFileName());
+      restoreArchive.run();
+    }
+  }
+
+  /**
+   * The files are extracted in a temp directory, and then renamed, so that concurrent processes repairing the same directory
+   * never see partially written files.
+   */
+  private static void replaceFiles(Path cachedFile, Path extractedDir, Set<String> paths) throws IOException {
+    var tempDir = Files.createTempDirectory(extractedDir.getParent(), "jre");
+    try {
+      extract(cachedFile, tempDir, paths::contains);
+      for (String path : paths) {
+        var file = tempDir.resolve(path);
+        if (Files.exists(file)) {
+          var target = extractedDir.resolve(path);
+          Files.createDirectories(target.getParent());
+          Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+      }
+    } finally {
+      deleteQuietly(tempDir);
+    }
+  }
+
+  /**
+   * @param filter paths, relative to the target directory, of the files to extract
+   */
+  private static void extract(Path compressedFile, Path targetDir, Predicate<String> filter) throws IOException {
     var filename = compressedFile.getFileName().toString();
     String extension = filename.substring(filename.lastIndexOf('.') + 1);
     switch (extension) {
       case EXTENSION_ZIP:
-        CompressionUtils.unzip(compressedFile, targetDir);
+      case EXTENSION_JAR:
+        CompressionUtils.unzip(compressedFile, targetDir, e -> filter.test(relativePath(targetDir, e.getName())), UNZIP_THREADS);
         break;
       case EXTENSION_GZ:
-        CompressionUtils.extractTarGz(compressedFile, targetDir);
+        CompressionUtils.extractTarGz(compressedFile, targetDir, e -> filter.test(relativePath(targetDir, e.getName())));
+        break;
+      case EXTENSION_XZ:
+        CompressionUtils.extractTarXz(compressedFile, targetDir, e -> filter.test(relativePath(targetDir, e.getName())));
+        break;
+      case EXTENSION_ZSTD:
+        CompressionUtils.extractTarZstd(compressedFile, targetDir, e -> filter.test(relativePath(targetDir, e.getName())));
         break;
       default:
         throw new IllegalArgumentException("Unsupported compressed archive extension: " + extension);
     }
   }
 
+  /**
+   * Zip archives can't be extracted while they are downloaded, as their central directory is at the end.
+   */
+  @CheckForNull
+  private static StreamingExtraction.Extractor streamingExtractor(String filename, FileCache fileCache) {
+    String extension = filename.substring(filename.lastIndexOf('.') + 1);
+    switch (extension) {
+      case EXTENSION_GZ:
+        return (in, targetDir) -> CompressionUtils.extractTarGz(in, targetDir, freeSpaceCheck(fileCache, targetDir));
+      case EXTENSION_XZ:
+        return (in, targetDir) -> CompressionUtils.extractTarXz(in, targetDir, freeSpaceCheck(fileCache, targetDir));
+      case EXTENSION_ZSTD:
+        return (in, targetDir) -> CompressionUtils.extractTarZstd(in, targetDir, freeSpaceCheck(fileCache, targetDir));
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * The uncompressed size of an archive extracted while it is downloaded is not known upfront, so the free space is checked
+   * before writing each chunk of {@link #SPACE_CHECK_INTERVAL} bytes. Entries of the cache are evicted if needed, as when
+   * the archive is extracted after its download. A failed check stops the extraction, not the download.
+   */
+  private static Predicate<TarArchiveEntry> freeSpaceCheck(FileCache fileCache, Path targetDir) {
+    // bytes that were checked but are not written yet
+    long[] checked = {0L};
+    return entry -> {
+      long size = Math.max(0L, entry.getSize());
+      if (size > checked[0]) {
+        checked[0] = Math.max(size, SPACE_CHECK_INTERVAL);
+        fileCache.ensureFreeSpace(targetDir, checked[0]);
+      }
+      checked[0] -= size;
+      return true;
+    };
+  }
+
+  private static String relativePath(Path targetDir, String entryName) {
+    return ExtractionManifest.relativePath(targetDir, targetDir.resolve(entryName).normalize());
+  }
+
+  /**
+   * Tar archives are extracted while they are downloaded, see {@link StreamingExtraction}, so that a cold start takes about
+   * the longest of the download and the extraction instead of their sum.
+   */
   static class JreDownloader implements FileCache.Downloader {
     private final ServerConnection connection;
     private final JreMetadata jreMetadata;
+    private final FileCache fileCache;
+    @Nullable
+    private Path extraction;
 
-    JreDownloader(ServerConnection connection, JreMetadata jreMetadata) {
+    JreDownloader(ServerConnection connection, JreMetadata jreMetadata, FileCache fileCache) {
       this.connection = connection;
       this.jreMetadata = jreMetadata;
+      this.fileCache = fileCache;
     }
 
     @Override
@@ -255,5 +501,55 @@ public class JavaRunnerFactory {
         connection.downloadFromRestApi(API_PATH_JRE + "/" + jreMetadata.id, toFile);
       }
     }
+
+    @Override
+    public void download(String filename, Path toFile, MessageDigest digest) throws IOException {
+      // the download may be retried
+      discardExtraction();
+      var extractor = streamingExtractor(filename, fileCache);
+      if (extractor == null) {
+        if (StringUtils.isNotBlank(jreMetadata.getDownloadUrl())) {
+          connection.downloadFromExternalUrl(jreMetadata.getDownloadUrl(), toFile, digest);
+        } else {
+          connection.downloadFromRestApi(API_PATH_JRE + "/" + jreMetadata.id, toFile, digest);
+        }
+        return;
+      }
+      // next to the downloaded file, so that it can be moved to its final location
+      var stagingDir = Files.createTempDirectory(toFile.getParent(), "jre");
+      var streamingExtraction = StreamingExtraction.start(stagingDir, extractor);
+      try {
+        if (StringUtils.isNotBlank(jreMetadata.getDownloadUrl())) {
+          connection.downloadFromExternalUrl(jreMetadata.getDownloadUrl(), toFile, digest, streamingExtraction.getOutput());
+        } else {
+          connection.downloadFromRestApi(API_PATH_JRE + "/" + jreMetadata.id, toFile, digest, streamingExtraction.getOutput());
+        }
+      } finally {
+        if (streamingExtraction.await()) {
+          extraction = stagingDir;
+        } else {
+          LOG.debug("The JRE will be extracted after its download");
+          deleteQuietly(stagingDir);
+        }
+      }
+    }
+
+    /**
+     * @return the directory where the last downloaded archive was extracted, if it was, and whose ownership is transferred to
+     * the caller. The archive must not be trusted before its hash is verified.
+     */
+    @CheckForNull
+    Path takeExtraction() {
+      var dir = extraction;
+      extraction = null;
+      return dir;
+    }
+
+    void discardExtraction() {
+      if (extraction != null) {
+        deleteQuietly(extraction);
+        extraction = null;
+      }
+    }
   }
 }
@@ -0,0 +1,112 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.Utils;
+
+/**
+ * The java executable is run once with {@code --version} before the scanner engine, so that a broken JRE fails early with
+ * a clear log. A successful check is recorded in the user cache, keyed by the {@link FileStamp stamp} of the executable, so
+ * that it does not cost an extra JVM startup on the next runs, until the executable changes.
+ * <p>
+ * Executables found in the {@code PATH}, rather than by an absolute path, are checked on every run.
+ */
+class JreSanityCheck {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JreSanityCheck.class);
+
+  static final String CHECKS_DIR = "_jre_checks";
+
+  private final Path checksDir;
+
+  JreSanityCheck(Path cacheDir) {
+    this.checksDir = cacheDir.resolve(CHECKS_DIR);
+  }
+
+  void run(JavaRunner javaRunner) {
+    var javaExecutable = javaRunner.getJavaExecutable();
+    var key = key(javaExecutable);
+    if (key != null && Files.exists(checksDir.resolve(key))) {
+      LOG.debug("The java executable {} already passed the sanity check", javaExecutable);
+      return;
+    }
+    if (javaRunner.execute(Collections.singletonList("--version"), null, LOG::debug) && key != null) {
+      record(key, javaExecutable);
+    }
+  }
+
+  private void record(String key, Path javaExecutable) {
+    try {
+      Files.createDirectories(checksDir);
+      // the real path, so that records of executables that changed or were deleted can be cleaned
+      Files.writeString(Files.createFile(checksDir.resolve(key)), javaExecutable.toRealPath().toString());
+    } catch (FileAlreadyExistsException e) {
+      // recorded concurrently by another process
+    } catch (IOException e) {
+      LOG.debug("Unable to record the sanity check of {}", javaExecutable, e);
+    }
+  }
+
+  /**
+   * Delete the records of executables that changed or were deleted since they were checked.
+   */
+  static void deleteStale(Path cacheDir) {
+    var checksDir = cacheDir.resolve(CHECKS_DIR);
+    if (!Files.isDirectory(checksDir)) {
+      return;
+    }
+    try (Stream<Path> stream = Files.list(checksDir)) {
+      for (Path record : stream.collect(Collectors.toList())) {
+        if (!record.getFileName().toString().equals(key(readExecutable(record)))) {
+          LOG.debug("Delete the stale sanity check record {}", record);
+          Utils.deleteQuietly(record);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to clean {}", checksDir, e);
+    }
+  }
+
+  @CheckForNull
+  private static Path readExecutable(Path record) {
+    try {
+      return Paths.get(Files.readString(record, StandardCharsets.UTF_8));
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  @CheckForNull
+  static String key(@CheckForNull Path javaExecutable) {
+    return FileStamp.of(javaExecutable);
+  }
+}
@@ -21,6 +21,7 @@ package org.sonarsource.scanner.lib.internal;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -80,5 +81,10 @@ class LegacyScannerEngineDownloader {
     public void download(String filename, Path toFile) throws IOException {
       connection.downloadFromWebApi(format("/batch/file?name=%s", filename), toFile);
     }
+
+    @Override
+    public void download(String filename, Path toFile, MessageDigest digest) throws IOException {
+      connection.downloadFromWebApi(format("/batch/file?name=%s", filename), toFile, digest);
+    }
   }
 }
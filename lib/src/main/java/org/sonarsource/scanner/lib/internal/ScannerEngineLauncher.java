@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonarsource.scanner.lib.ScannerProperties;
@@ -41,14 +42,29 @@ public class ScannerEngineLauncher {
   private static final String JSON_FIELD_SCANNER_PROPERTIES = "scannerProperties";
   private final JavaRunner javaRunner;
   private final CachedFile scannerEngineJar;
+  @Nullable
+  private final ClassDataSharing classDataSharing;
+  @Nullable
+  private final ExplodedScannerEngine explodedScannerEngine;
 
   public ScannerEngineLauncher(JavaRunner javaRunner, CachedFile scannerEngineJar) {
+    this(javaRunner, scannerEngineJar, null, null);
+  }
+
+  ScannerEngineLauncher(JavaRunner javaRunner, CachedFile scannerEngineJar, @Nullable ClassDataSharing classDataSharing,
+    @Nullable ExplodedScannerEngine explodedScannerEngine) {
     this.javaRunner = javaRunner;
     this.scannerEngineJar = scannerEngineJar;
+    this.classDataSharing = classDataSharing;
+    this.explodedScannerEngine = explodedScannerEngine;
   }
 
   public boolean execute(Map<String, String> properties) {
-    return javaRunner.execute(buildArgs(properties), buildJsonProperties(properties), ScannerEngineLauncher::tryParse);
+    var success = javaRunner.execute(buildArgs(properties), buildJsonProperties(properties), ScannerEngineLauncher::tryParse);
+    if (classDataSharing != null) {
+      classDataSharing.afterRun(success);
+    }
+    return success;
   }
 
   static void tryParse(String stdout) {
@@ -105,8 +121,15 @@ public class ScannerEngineLauncher {
     if (javaOpts != null) {
       args.addAll(split(javaOpts));
     }
-    args.add("-jar");
-    args.add(scannerEngineJar.getPathInCache().toAbsolutePath().toString());
+    if (classDataSharing != null) {
+      args.addAll(classDataSharing.getJvmArgs());
+    }
+    if (explodedScannerEngine != null) {
+      args.addAll(explodedScannerEngine.getLaunchArgs());
+    } else {
+      args.add("-jar");
+      args.add(scannerEngineJar.getPathInCache().toAbsolutePath().toString());
+    }
     return args;
   }
 
@@ -22,8 +22,9 @@ package org.sonarsource.scanner.lib.internal;
 import com.google.gson.Gson;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Collections;
+import java.security.MessageDigest;
 import java.util.Map;
+import java.util.Optional;
 import javax.annotation.Nullable;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -51,13 +52,29 @@ public class ScannerEngineLauncherFactory {
 
   public ScannerEngineLauncher createLauncher(ServerConnection serverConnection, FileCache fileCache, Map<String, String> properties) {
     JavaRunner javaRunner = javaRunnerFactory.createRunner(serverConnection, fileCache, properties);
-    jreSanityCheck(javaRunner);
+    new JreSanityCheck(fileCache.getDir()).run(javaRunner);
     var scannerEngine = getScannerEngine(serverConnection, fileCache, true);
-    return new ScannerEngineLauncher(javaRunner, scannerEngine);
+    var explodedScannerEngine = ExplodedScannerEngine.create(fileCache, scannerEngine, properties,
+      () -> getScannerEngine(serverConnection, fileCache, true));
+    // classes loaded from a directory can't be archived
+    var classDataSharing = explodedScannerEngine == null
+      ? ClassDataSharing.create(fileCache, javaRunner.getJavaExecutable(), scannerEngine, properties)
+      : null;
+    return new ScannerEngineLauncher(javaRunner, scannerEngine, classDataSharing, explodedScannerEngine);
   }
 
-  private static void jreSanityCheck(JavaRunner javaRunner) {
-    javaRunner.execute(Collections.singletonList("--version"), null, LOG::debug);
+  /**
+   * Download the JRE for the given OS and architecture in the cache, without running it.
+   */
+  public Optional<CachedFile> prefetchJre(ServerConnection serverConnection, FileCache fileCache, String os, String arch) {
+    return javaRunnerFactory.prefetchJre(serverConnection, fileCache, os, arch);
+  }
+
+  /**
+   * Download the scanner engine in the cache, without launching it.
+   */
+  public CachedFile prefetchScannerEngine(ServerConnection serverConnection, FileCache fileCache) {
+    return getScannerEngine(serverConnection, fileCache, true);
   }
 
   private static CachedFile getScannerEngine(ServerConnection serverConnection, FileCache fileCache, boolean retry) {
@@ -107,5 +124,14 @@ public class ScannerEngineLauncherFactory {
         connection.downloadFromRestApi(API_PATH_ENGINE, toFile);
       }
     }
+
+    @Override
+    public void download(String filename, Path toFile, MessageDigest digest) throws IOException {
+      if (StringUtils.isNotBlank(scannerEngineMetadata.getDownloadUrl())) {
+        connection.downloadFromExternalUrl(scannerEngineMetadata.getDownloadUrl(), toFile, digest);
+      } else {
+        connection.downloadFromRestApi(API_PATH_ENGINE, toFile, digest);
+      }
+    }
   }
 }
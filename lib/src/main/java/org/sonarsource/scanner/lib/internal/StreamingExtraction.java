@@ -0,0 +1,112 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Path;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extraction of a compressed tar archive on a background thread, fed with the bytes written to {@link #getOutput()}. It is
+ * used to extract an archive while it is downloaded. The pipe is bounded, so the download is slowed down to the pace of the
+ * extraction rather than buffering the archive in memory.
+ * <p>
+ * A failure of the extraction never fails the writer: the remaining bytes are drained, and {@link #await()} returns false.
+ */
+class StreamingExtraction {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StreamingExtraction.class);
+  private static final int PIPE_SIZE = 1024 * 1024;
+
+  private final Path targetDir;
+  private final Extractor extractor;
+  private final PipedOutputStream output;
+  private final Thread thread;
+  private volatile boolean succeeded;
+
+  private StreamingExtraction(Path targetDir, Extractor extractor) throws IOException {
+    this.targetDir = targetDir;
+    this.extractor = extractor;
+    var input = new PipedInputStream(PIPE_SIZE);
+    this.output = new PipedOutputStream(input);
+    this.thread = new Thread(() -> extract(input), "sonar-jre-extraction");
+    this.thread.setDaemon(true);
+  }
+
+  static StreamingExtraction start(Path targetDir, Extractor extractor) throws IOException {
+    var extraction = new StreamingExtraction(targetDir, extractor);
+    extraction.thread.start();
+    return extraction;
+  }
+
+  /**
+   * The content of the archive. Closing it marks the end of the archive.
+   */
+  OutputStream getOutput() {
+    return output;
+  }
+
+  /**
+   * Wait for the extraction of the bytes written so far. The output is closed if it was not already.
+   *
+   * @return true if the whole archive was extracted
+   */
+  boolean await() {
+    IOUtils.closeQuietly(output);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return succeeded;
+  }
+
+  private void extract(PipedInputStream input) {
+    try {
+      extractor.extract(input, targetDir);
+      succeeded = true;
+    } catch (Exception e) {
+      LOG.debug("Failed to extract the archive while downloading it", e);
+    } finally {
+      try {
+        // the end of the tar archive may be followed by padding, and the writer must never be blocked by a full pipe
+        IOUtils.consume(input);
+      } catch (IOException e) {
+        LOG.debug("Failed to read the end of the archive", e);
+      }
+      IOUtils.closeQuietly(input);
+    }
+  }
+
+  @FunctionalInterface
+  interface Extractor {
+    /**
+     * Extract the archive read from the given stream, without closing it.
+     */
+    void extract(InputStream in, Path targetDir) throws IOException;
+  }
+}
@@ -30,7 +30,7 @@ import org.sonarsource.scanner.lib.Utils;
 
 /**
  * The file sonar-runner-batch.jar is locked by the classloader on Windows and can't be dropped at the end of the execution.
- * See {@link IsolatedLauncherFactory}
+ * See {@link IsolatedLauncherFactory}. Cleaning is done in the background by {@link CacheJanitor}.
  */
 class TempCleaning {
 
@@ -0,0 +1,212 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.internal.util.CompressionUtils;
+
+import static org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS;
+
+/**
+ * Content-addressed store of the files of extracted archives. Consecutive JRE releases share most of their files, so
+ * identical files are hard links to a single blob of the store. Blobs are keyed by size, checksum and permissions, and
+ * their content is compared byte per byte before linking.
+ * <p>
+ * A blob that is not linked from any extracted directory anymore, for example after an eviction, has a single link and
+ * is deleted by {@link #deleteUnused(long)}. Deduplication is disabled on Windows, where the number of links of a file
+ * is not available.
+ */
+public class BlobStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlobStore.class);
+
+  static final String BLOBS_DIR = "_blobs";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path blobsDir;
+  private final Path tmpDir;
+
+  public BlobStore(Path cacheDir) {
+    this.blobsDir = cacheDir.resolve(BLOBS_DIR);
+    this.tmpDir = blobsDir.resolve("_tmp");
+  }
+
+  /**
+   * Replace the regular files of a directory by hard links to identical blobs. Files that are not in the store yet are
+   * added to it. The checksums computed on the way are kept in the returned {@link Deduplication}.
+   */
+  Deduplication deduplicate(Path dir) {
+    var deduplication = new Deduplication();
+    if (IS_OS_WINDOWS) {
+      return deduplication;
+    }
+    try {
+      Files.createDirectories(tmpDir);
+      for (Path file : listFiles(dir)) {
+        deduplicateFile(file, deduplication);
+      }
+    } catch (UnsupportedOperationException e) {
+      LOG.debug("Hard links are not supported in {}", blobsDir, e);
+    } catch (IOException e) {
+      LOG.debug("Unable to deduplicate the files of {}", dir, e);
+    }
+    return deduplication;
+  }
+
+  private void deduplicateFile(Path file, Deduplication deduplication) throws IOException {
+    long size = Files.size(file);
+    if (size == 0) {
+      return;
+    }
+    long crc = checksum(file);
+    deduplication.checksums.put(file, crc);
+    var checksum = String.format("%08x", crc);
+    var mode = Integer.toOctalString(CompressionUtils.toFileMode(Files.getPosixFilePermissions(file)));
+    var blob = blobsDir.resolve(checksum.substring(0, 2)).resolve(checksum + "-" + size + "-" + mode);
+    if (!Files.exists(blob)) {
+      Files.createDirectories(blob.getParent());
+      try {
+        Files.createLink(blob, file);
+        deduplication.stored += size;
+      } catch (FileAlreadyExistsException e) {
+        // added by another process in the meantime, the file will be linked next time
+      }
+      return;
+    }
+    if (Files.isSameFile(blob, file) || !FileUtils.contentEquals(blob.toFile(), file.toFile())) {
+      return;
+    }
+    var tempLink = tmpDir.resolve(UUID.randomUUID().toString());
+    Files.createLink(tempLink, blob);
+    Files.move(tempLink, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    deduplication.saved += size;
+  }
+
+  /**
+   * Delete the blobs that are not linked from any extracted directory and were not modified since the given time.
+   *
+   * @return the number of bytes freed
+   */
+  public long deleteUnused(long cutoff) {
+    if (IS_OS_WINDOWS || !Files.isDirectory(blobsDir)) {
+      return 0L;
+    }
+    long freed = 0L;
+    try {
+      for (Path blob : listFiles(blobsDir)) {
+        if (Files.getLastModifiedTime(blob).toMillis() < cutoff && (int) Files.getAttribute(blob, "unix:nlink") == 1) {
+          LOG.debug("Delete unused blob {}", blob);
+          long size = Files.size(blob);
+          if (Files.deleteIfExists(blob)) {
+            freed += size;
+          }
+        }
+      }
+    } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+      LOG.debug("Unable to delete the unused blobs of {}", blobsDir, e);
+    }
+    return freed;
+  }
+
+  /**
+   * Total size of the blobs. Each blob is a distinct file on disk, whatever the number of extracted directories linking to it.
+   */
+  long size() {
+    if (!Files.isDirectory(blobsDir)) {
+      return 0L;
+    }
+    return FileCache.sizeOf(blobsDir);
+  }
+
+  /**
+   * Whether a file is linked from several places, typically a file of an extracted directory that is a blob of the store.
+   * Always false on file systems that don't report the number of links.
+   */
+  static boolean isShared(Path file) {
+    try {
+      return !IS_OS_WINDOWS && (int) Files.getAttribute(file, "unix:nlink") > 1;
+    } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Outcome of the deduplication of a directory.
+   */
+  static class Deduplication {
+    private final Map<Path, Long> checksums = new HashMap<>();
+    private long saved;
+    private long stored;
+
+    /**
+     * Bytes of the files replaced by links to blobs that were already in the store.
+     */
+    long getSaved() {
+      return saved;
+    }
+
+    /**
+     * Bytes of the files added to the store as new blobs.
+     */
+    long getStored() {
+      return stored;
+    }
+
+    /**
+     * CRC32C of the non-empty files that were checked, by path. Empty when deduplication is not supported.
+     */
+    Map<Path, Long> getChecksums() {
+      return checksums;
+    }
+  }
+
+  private static List<Path> listFiles(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+  }
+
+  private static long checksum(Path file) throws IOException {
+    var crc = new CRC32C();
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.Utils;
+
+import static org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS;
+import static org.sonarsource.scanner.lib.internal.util.CompressionUtils.fromFileMode;
+import static org.sonarsource.scanner.lib.internal.util.CompressionUtils.toFileMode;
+
+/**
+ * A bundle is a single uncompressed tar file holding entries of the cache, to move them efficiently between machines, for
+ * example to air-gapped build agents. Its first entry is a JSON descriptor listing the file of each cache entry. Then come
+ * the files of the entries, named {@code <hash>/<filename>}.
+ * <p>
+ * On import, the hashes of all the files are verified in parallel before any entry is installed. The hash algorithm is
+ * derived from the length of each hash, never read from the bundle, so that a forged bundle can't pick a weaker one. Directories where archives
+ * were extracted are deliberately not part of a bundle: nothing could verify their content, and they hold code executed by
+ * the scanner. Archives are extracted again from the verified files when they are first used.
+ */
+class CacheBundle {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheBundle.class);
+
+  static final String DESCRIPTOR = "bundle.json";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path cacheDir;
+  private final Path tmpDir;
+  private final FileHashes hashes;
+
+  CacheBundle(Path cacheDir, Path tmpDir, FileHashes hashes) {
+    this.cacheDir = cacheDir;
+    this.tmpDir = tmpDir;
+    this.hashes = hashes;
+  }
+
+  /**
+   * @param entries the filename in the cache, indexed by hash
+   */
+  void export(Map<String, String> entries, Path bundleFile) throws IOException {
+    List<BundleEntry> descriptor = new ArrayList<>();
+    entries.forEach((hash, filename) -> {
+      // fail early rather than producing a bundle that can't be imported
+      hashAlgorithm(hash);
+      descriptor.add(new BundleEntry(hash, filename));
+    });
+    var tempFile = Files.createTempFile(bundleFile.toAbsolutePath().getParent(), bundleFile.getFileName().toString(), null);
+    try {
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE);
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        writeDescriptor(tar, descriptor);
+        for (BundleEntry entry : descriptor) {
+          var hashDir = CacheLayout.hashDir(cacheDir, entry.hash);
+          addFile(tar, hashDir, hashDir.resolve(entry.filename));
+        }
+      }
+      Files.move(tempFile, bundleFile, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    LOG.info("Exported {} entries of the user cache to {}", descriptor.size(), bundleFile);
+  }
+
+  /**
+   * Unpack the bundle in a staging directory and verify the hashes of the files. The caller is responsible for deleting
+   * the staging directory.
+   */
+  StagedBundle stage(Path bundleFile) throws IOException {
+    var stagingDir = Files.createTempDirectory(tmpDir, "bundle");
+    try {
+      var descriptor = unpack(bundleFile, stagingDir);
+      verify(stagingDir, descriptor);
+      return new StagedBundle(stagingDir, descriptor);
+    } catch (IOException | RuntimeException e) {
+      Utils.deleteQuietly(stagingDir);
+      throw e;
+    }
+  }
+
+  private static List<BundleEntry> unpack(Path bundleFile, Path stagingDir) throws IOException {
+    List<BundleEntry> descriptor;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(bundleFile), BUFFER_SIZE);
+      TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+      descriptor = readDescriptor(tar, bundleFile);
+      var expectedNames = descriptor.stream().map(e -> e.hash + "/" + e.filename).collect(Collectors.toSet());
+      TarArchiveEntry tarEntry;
+      while ((tarEntry = tar.getNextEntry()) != null) {
+        if (!tarEntry.isFile() || !expectedNames.remove(tarEntry.getName())) {
+          throw new IllegalStateException("Unexpected entry in the bundle " + bundleFile + ": " + tarEntry.getName());
+        }
+        var target = stagingDir.resolve(tarEntry.getName());
+        unpack(tar, tarEntry, target);
+      }
+    }
+    return descriptor;
+  }
+
+  private void verify(Path stagingDir, List<BundleEntry> descriptor) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(descriptor.size(), Runtime.getRuntime().availableProcessors())));
+    try {
+      List<Future<String>> actualHashes = new ArrayList<>();
+      for (BundleEntry entry : descriptor) {
+        var file = stagingDir.resolve(entry.hash).resolve(entry.filename);
+        if (!Files.isRegularFile(file)) {
+          throw new IllegalStateException("The bundle does not contain " + entry.filename + " with hash " + entry.hash);
+        }
+        var algorithm = hashAlgorithm(entry.hash);
+        actualHashes.add(executor.submit(() -> hashes.of(file.toFile(), algorithm)));
+      }
+      for (int i = 0; i < descriptor.size(); i++) {
+        var entry = descriptor.get(i);
+        var actualHash = actualHashes.get(i).get();
+        if (!entry.hash.equals(actualHash)) {
+          throw new HashMismatchException("INVALID HASH: File " + entry.filename + " of the bundle was expected to have hash " + entry.hash
+            + " but has hash " + actualHash);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while verifying the bundle", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Fail to verify the bundle", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void writeDescriptor(TarArchiveOutputStream tar, List<BundleEntry> descriptor) throws IOException {
+    var bytes = new Gson().toJson(descriptor).getBytes(StandardCharsets.UTF_8);
+    var tarEntry = new TarArchiveEntry(DESCRIPTOR);
+    tarEntry.setSize(bytes.length);
+    tar.putArchiveEntry(tarEntry);
+    tar.write(bytes);
+    tar.closeArchiveEntry();
+  }
+
+  private static List<BundleEntry> readDescriptor(TarArchiveInputStream tar, Path bundleFile) throws IOException {
+    var tarEntry = tar.getNextEntry();
+    if (tarEntry == null || !DESCRIPTOR.equals(tarEntry.getName())) {
+      throw new IllegalStateException("Not a bundle of the user cache: " + bundleFile);
+    }
+    try {
+      var descriptor = new Gson().fromJson(new String(tar.readAllBytes(), StandardCharsets.UTF_8), BundleEntry[].class);
+      if (descriptor == null || Stream.of(descriptor).anyMatch(e -> !e.isValid())) {
+        throw new IllegalStateException("Invalid descriptor in the bundle " + bundleFile);
+      }
+      return List.of(descriptor);
+    } catch (JsonParseException e) {
+      throw new IllegalStateException("Invalid descriptor in the bundle " + bundleFile, e);
+    }
+  }
+
+  /**
+   * Entries are named {@code <hash>/<filename>}, whatever the layout of the cache.
+   */
+  private static void addFile(TarArchiveOutputStream tar, Path hashDir, Path file) throws IOException {
+    var name = hashDir.getFileName() + "/" + hashDir.relativize(file).toString().replace('\\', '/');
+    var tarEntry = new TarArchiveEntry(file, name);
+    if (!IS_OS_WINDOWS) {
+      tarEntry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | toFileMode(Files.getPosixFilePermissions(file)));
+    }
+    tar.putArchiveEntry(tarEntry);
+    Files.copy(file, tar);
+    tar.closeArchiveEntry();
+  }
+
+  private static void unpack(TarArchiveInputStream tar, TarArchiveEntry tarEntry, Path target) throws IOException {
+    Files.createDirectories(target.getParent());
+    Files.copy(tar, target);
+    int mode = tarEntry.getMode() & 0777;
+    if (mode != 0 && !IS_OS_WINDOWS) {
+      Files.setPosixFilePermissions(target, fromFileMode(mode));
+    }
+  }
+
+  static String hashAlgorithm(String hash) {
+    var algorithm = FileHashes.guessAlgorithm(hash);
+    if (algorithm == null) {
+      throw new IllegalStateException("Unable to guess the algorithm of the hash " + hash);
+    }
+    return algorithm;
+  }
+
+  static class StagedBundle implements AutoCloseable {
+    private final Path stagingDir;
+    private final List<BundleEntry> entries;
+
+    private StagedBundle(Path stagingDir, List<BundleEntry> entries) {
+      this.stagingDir = stagingDir;
+      this.entries = entries;
+    }
+
+    Path getHashDir(String hash) {
+      return stagingDir.resolve(hash);
+    }
+
+    Map<String, String> getEntries() {
+      return entries.stream().collect(Collectors.toMap(e -> e.hash, e -> e.filename, (a, b) -> a));
+    }
+
+    @Override
+    public void close() {
+      Utils.deleteQuietly(stagingDir);
+    }
+  }
+
+  private static class BundleEntry {
+    @SerializedName("hash")
+    private final String hash;
+    @SerializedName("filename")
+    private final String filename;
+
+    private BundleEntry(String hash, String filename) {
+      this.hash = hash;
+      this.filename = filename;
+    }
+
+    private boolean isValid() {
+      return hash != null && filename != null && FileHashes.guessAlgorithm(hash) != null && Path.of(hash).getNameCount() == 1
+        && Path.of(filename).getNameCount() == 1 && !hash.startsWith("_") && !hash.contains("..") && !filename.contains("..");
+    }
+  }
+}
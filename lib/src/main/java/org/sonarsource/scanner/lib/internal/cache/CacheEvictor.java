@@ -0,0 +1,154 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.Utils;
+
+/**
+ * Remove the least recently used entries of the cache until its size is below a limit. An entry is a hash directory,
+ * so an archive is always removed together with its extracted {@code _unzip} directory. Leased entries are never removed.
+ * <p>
+ * Files of extracted directories can be hard links to blobs shared by several entries. The size of an entry only counts
+ * its own files, and the blobs are counted once. Removing an entry frees its blobs that are not linked anymore.
+ */
+class CacheEvictor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheEvictor.class);
+
+  private final Path dir;
+  private final UsageIndex usageIndex;
+  private final CacheLeases leases;
+  private final BlobStore blobStore;
+
+  CacheEvictor(Path dir, UsageIndex usageIndex, CacheLeases leases, BlobStore blobStore) {
+    this.dir = dir;
+    this.usageIndex = usageIndex;
+    this.leases = leases;
+    this.blobStore = blobStore;
+  }
+
+  /**
+   * Evict entries if the size of the cache exceeds the given one. The entries are only listed if the running total of the
+   * {@link UsageIndex} exceeds it, or has to be computed again.
+   *
+   * @return the number of evicted entries
+   */
+  int evict(long maxSize) {
+    var total = usageIndex.readTotal();
+    if (total.isPresent() && total.getAsLong() <= maxSize) {
+      return 0;
+    }
+    List<Candidate> candidates = listCandidates();
+    long totalSize = totalSize(candidates);
+    usageIndex.resetTotal(totalSize);
+    return evict(candidates, totalSize, maxSize);
+  }
+
+  /**
+   * Evict entries until the given number of bytes is freed, or no entry can be evicted anymore.
+   *
+   * @return the number of evicted entries
+   */
+  int free(long bytes) {
+    List<Candidate> candidates = listCandidates();
+    long totalSize = totalSize(candidates);
+    usageIndex.resetTotal(totalSize);
+    return evict(candidates, totalSize, Math.max(0L, totalSize - bytes));
+  }
+
+  private int evict(List<Candidate> candidates, long initialSize, long maxSize) {
+    long totalSize = initialSize;
+    if (totalSize <= maxSize) {
+      return 0;
+    }
+    LOG.debug("User cache size {} exceeds the limit of {}", FileUtils.byteCountToDisplaySize(totalSize), FileUtils.byteCountToDisplaySize(maxSize));
+    int evicted = 0;
+    for (Candidate candidate : candidates) {
+      if (totalSize <= maxSize) {
+        break;
+      }
+      if (leases.runIfNotLeased(candidate.hash, () -> remove(candidate))) {
+        LOG.debug("Evicted {} from the user cache", candidate.hash);
+        long freedBlobs = blobStore.deleteUnused(Long.MAX_VALUE);
+        usageIndex.addToTotal(-freedBlobs);
+        totalSize -= candidate.size + freedBlobs;
+        evicted++;
+      }
+    }
+    if (evicted > 0) {
+      LOG.info("Evicted {} entries from the user cache, new size is {}", evicted, FileUtils.byteCountToDisplaySize(totalSize));
+    }
+    return evicted;
+  }
+
+  private long totalSize(List<Candidate> candidates) {
+    return candidates.stream().mapToLong(c -> c.size).sum() + blobStore.size();
+  }
+
+  private void remove(Candidate candidate) {
+    Utils.deleteQuietly(candidate.hashDir);
+    if (candidate.indexed) {
+      usageIndex.remove(candidate.hash);
+    } else {
+      usageIndex.addToTotal(-candidate.size);
+    }
+  }
+
+  /**
+   * Entries of the cache, least recently used first.
+   */
+  private List<Candidate> listCandidates() {
+    return CacheLayout.listHashDirs(dir).stream()
+      .map(this::toCandidate)
+      .sorted(Comparator.comparingLong(c -> c.lastAccess))
+      .collect(Collectors.toList());
+  }
+
+  private Candidate toCandidate(Path hashDir) {
+    var hash = hashDir.getFileName().toString();
+    return usageIndex.read(hash)
+      .map(e -> new Candidate(hashDir, true, e.getSize(), e.getLastAccess()))
+      // entries created by older versions of the library are not indexed
+      .orElseGet(() -> new Candidate(hashDir, false, FileCache.exclusiveSizeOf(hashDir), FileCache.lastModifiedTime(hashDir)));
+  }
+
+  private static class Candidate {
+    private final Path hashDir;
+    private final String hash;
+    private final boolean indexed;
+    private final long size;
+    private final long lastAccess;
+
+    private Candidate(Path hashDir, boolean indexed, long size, long lastAccess) {
+      this.hashDir = hashDir;
+      this.hash = hashDir.getFileName().toString();
+      this.indexed = indexed;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Location of the entries in the cache. An entry with hash {@code abcdef...} is stored in {@code ab/cd/abcdef...}, so that
+ * directories stay small even if the cache holds tens of thousands of entries.
+ * <p>
+ * Older versions of the library stored entries directly in the cache directory. Such legacy entries are still found and
+ * used in place. They are never moved, since older versions sharing the cache only look for them there, and don't take
+ * leases that would keep them from being moved while they use them.
+ */
+public final class CacheLayout {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheLayout.class);
+
+  private static final int SHARD_LENGTH = 2;
+  private static final int SHARD_LEVELS = 2;
+
+  private CacheLayout() {
+    // only static methods
+  }
+
+  static Path shardedHashDir(Path cacheDir, String hash) {
+    if (hash.length() <= SHARD_LENGTH * SHARD_LEVELS) {
+      return cacheDir.resolve(hash);
+    }
+    var shardDir = cacheDir;
+    for (int level = 0; level < SHARD_LEVELS; level++) {
+      shardDir = shardDir.resolve(hash.substring(level * SHARD_LENGTH, (level + 1) * SHARD_LENGTH));
+    }
+    return shardDir.resolve(hash);
+  }
+
+  /**
+   * A file about the entry with the given hash, in a directory sharded like the cache itself, for example
+   * {@code _index/ab/cd/abcdef....json}.
+   */
+  static Path shardedFile(Path dir, String hash, String suffix) {
+    return shardedHashDir(dir, hash).resolveSibling(hash + suffix);
+  }
+
+  static Path legacyHashDir(Path cacheDir, String hash) {
+    return cacheDir.resolve(hash);
+  }
+
+  /**
+   * The directory of the entry with the given hash: the legacy one if only it exists, else the sharded one.
+   */
+  static Path hashDir(Path cacheDir, String hash) {
+    var sharded = shardedHashDir(cacheDir, hash);
+    if (!Files.isDirectory(sharded)) {
+      var legacy = legacyHashDir(cacheDir, hash);
+      if (Files.isDirectory(legacy)) {
+        return legacy;
+      }
+    }
+    return sharded;
+  }
+
+  /**
+   * Directories of all the entries of the cache, in both layouts.
+   */
+  public static List<Path> listHashDirs(Path cacheDir) {
+    List<Path> hashDirs = new ArrayList<>();
+    for (Path child : listDirs(cacheDir)) {
+      if (isShard(child)) {
+        collectShard(child, 1, hashDirs);
+      } else if (!child.getFileName().toString().startsWith("_")) {
+        hashDirs.add(child);
+      }
+    }
+    return hashDirs;
+  }
+
+  private static void collectShard(Path shardDir, int level, List<Path> hashDirs) {
+    for (Path child : listDirs(shardDir)) {
+      if (level < SHARD_LEVELS) {
+        collectShard(child, level + 1, hashDirs);
+      } else {
+        hashDirs.add(child);
+      }
+    }
+  }
+
+  private static boolean isShard(Path dir) {
+    return dir.getFileName().toString().length() == SHARD_LENGTH;
+  }
+
+  private static List<Path> listDirs(Path dir) {
+    try (Stream<Path> paths = Files.list(dir)) {
+      return paths.filter(Files::isDirectory).collect(Collectors.toList());
+    } catch (IOException e) {
+      LOG.debug("Unable to list {}", dir, e);
+      return List.of();
+    }
+  }
+}
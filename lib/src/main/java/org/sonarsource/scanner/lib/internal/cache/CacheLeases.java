@@ -0,0 +1,262 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS;
+
+/**
+ * Leases protect cache entries that are in use from being evicted. A lease is a shared lock on a file of the
+ * {@code _leases} directory, sharded like the entries of the cache, so it is automatically released by the OS if the
+ * process dies. Eviction requires an exclusive lock on the same file.
+ * <p>
+ * The lock file is deleted after an eviction, while it is still exclusively locked. It is first marked as deleted by
+ * writing a byte into it: a process that opened it before the deletion and was waiting for the lock sees that the file is
+ * not empty anymore, and locks the new file instead. Lock files are not deleted on Windows, where a file that is open can't
+ * be replaced.
+ * <p>
+ * File locks are held on behalf of the whole JVM and can't overlap, so leases are reference counted in a JVM-wide registry,
+ * with a state per entry. Blocking on a file lock or evicting an entry only holds the monitor of that entry, never the
+ * registry, so that leases on other entries are not delayed.
+ */
+class CacheLeases {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheLeases.class);
+
+  private static final ConcurrentMap<Path, EntryState> STATES = new ConcurrentHashMap<>();
+  private static final byte[] DELETED_MARKER = {1};
+
+  private final Path leasesDir;
+
+  CacheLeases(Path leasesDir) {
+    this.leasesDir = leasesDir;
+  }
+
+  /**
+   * Acquire a lease on the entry with the given hash. Blocks while the entry is being evicted by another process, or by
+   * another thread.
+   */
+  Lease acquire(String hash) {
+    var lockFile = lockFile(hash);
+    while (true) {
+      var state = STATES.computeIfAbsent(lockFile, EntryState::new);
+      synchronized (state) {
+        awaitEviction(state);
+        if (state.retired) {
+          // released concurrently, and removed from the registry
+          continue;
+        }
+        if (state.lock == null) {
+          try {
+            state.lock = lockShared(lockFile);
+          } catch (IllegalStateException e) {
+            retireIfUnused(state);
+            throw e;
+          }
+        }
+        state.count++;
+        return new Lease(state);
+      }
+    }
+  }
+
+  private static void awaitEviction(EntryState state) {
+    while (state.evicting) {
+      try {
+        state.wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the eviction of " + state.lockFile, e);
+      }
+    }
+  }
+
+  /**
+   * Run the given action if, and only if, nobody holds a lease on the entry with the given hash. No lease can be acquired
+   * while the action runs.
+   *
+   * @return true if the action was run
+   */
+  boolean runIfNotLeased(String hash, Runnable action) {
+    var lockFile = lockFile(hash);
+    EntryState state;
+    while (true) {
+      state = STATES.computeIfAbsent(lockFile, EntryState::new);
+      synchronized (state) {
+        if (state.retired) {
+          continue;
+        }
+        if (state.count > 0 || state.evicting) {
+          return false;
+        }
+        state.evicting = true;
+        break;
+      }
+    }
+    try (var channel = open(lockFile); var lock = channel.tryLock()) {
+      if (lock == null || isDeleted(channel)) {
+        return false;
+      }
+      action.run();
+      delete(lockFile, channel);
+      return true;
+    } catch (IOException | OverlappingFileLockException e) {
+      LOG.debug("Unable to lock {}", lockFile, e);
+      return false;
+    } finally {
+      synchronized (state) {
+        state.evicting = false;
+        retireIfUnused(state);
+        state.notifyAll();
+      }
+    }
+  }
+
+  private Path lockFile(String hash) {
+    return CacheLayout.shardedFile(leasesDir, hash, ".lock");
+  }
+
+  private static FileLock lockShared(Path lockFile) {
+    while (true) {
+      FileChannel channel = null;
+      try {
+        channel = open(lockFile);
+        var lock = channel.lock(0L, Long.MAX_VALUE, true);
+        if (!isDeleted(channel)) {
+          return lock;
+        }
+        // deleted by an eviction while waiting for the lock
+        channel.close();
+      } catch (IOException e) {
+        closeQuietly(channel);
+        throw new IllegalStateException("Fail to acquire lease " + lockFile, e);
+      }
+    }
+  }
+
+  private static FileChannel open(Path lockFile) throws IOException {
+    Files.createDirectories(lockFile.getParent());
+    return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private static boolean isDeleted(FileChannel channel) throws IOException {
+    return channel.size() > 0;
+  }
+
+  /**
+   * Must be called with the exclusive lock. If the file can't be deleted, it is left empty so that it stays usable.
+   */
+  private static void delete(Path lockFile, FileChannel channel) {
+    if (IS_OS_WINDOWS) {
+      return;
+    }
+    try {
+      channel.write(ByteBuffer.wrap(DELETED_MARKER));
+    } catch (IOException e) {
+      LOG.debug("Unable to delete {}", lockFile, e);
+      return;
+    }
+    try {
+      Files.delete(lockFile);
+    } catch (IOException e) {
+      LOG.debug("Unable to delete {}", lockFile, e);
+      try {
+        channel.truncate(0L);
+      } catch (IOException truncateException) {
+        LOG.warn("Unable to reset the lock file {}, delete it manually", lockFile, truncateException);
+      }
+    }
+  }
+
+  private static void closeQuietly(@Nullable FileChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Must be called with the monitor of the state.
+   */
+  private static void retireIfUnused(EntryState state) {
+    if (state.count == 0 && !state.evicting) {
+      state.retired = true;
+      STATES.remove(state.lockFile, state);
+    }
+  }
+
+  /**
+   * Guarded by its own monitor.
+   */
+  private static class EntryState {
+    private final Path lockFile;
+    @Nullable
+    private FileLock lock;
+    private int count;
+    private boolean evicting;
+    private boolean retired;
+
+    private EntryState(Path lockFile) {
+      this.lockFile = lockFile;
+    }
+  }
+
+  static class Lease implements AutoCloseable {
+    private final EntryState state;
+    private boolean released;
+
+    private Lease(EntryState state) {
+      this.state = state;
+    }
+
+    @Override
+    public void close() {
+      synchronized (state) {
+        if (released) {
+          return;
+        }
+        released = true;
+        state.count--;
+        if (state.count == 0) {
+          // closing the channel releases the lock
+          closeQuietly(state.lock.channel());
+          state.lock = null;
+          retireIfUnused(state);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Counters about the usage of the user cache, accumulated by all the processes that share it.
+ */
+public class CacheStatistics {
+
+  @SerializedName("hits")
+  private long hits;
+  @SerializedName("misses")
+  private long misses;
+  @SerializedName("bytesDownloaded")
+  private long bytesDownloaded;
+  @SerializedName("downloadMillis")
+  private long downloadMillis;
+  @SerializedName("bytesExtracted")
+  private long bytesExtracted;
+  @SerializedName("extractionMillis")
+  private long extractionMillis;
+  @SerializedName("evictions")
+  private long evictions;
+
+  /**
+   * Number of files that were found in the cache, including the read-only caches.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Number of files that had to be downloaded.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getBytesDownloaded() {
+    return bytesDownloaded;
+  }
+
+  public long getDownloadMillis() {
+    return downloadMillis;
+  }
+
+  /**
+   * Size of the archives once extracted, for example the JREs.
+   */
+  public long getBytesExtracted() {
+    return bytesExtracted;
+  }
+
+  public long getExtractionMillis() {
+    return extractionMillis;
+  }
+
+  /**
+   * Number of entries removed to keep the cache under its maximum size.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  synchronized void recordHit() {
+    hits++;
+  }
+
+  synchronized void recordDownload(long bytes, long millis) {
+    misses++;
+    bytesDownloaded += bytes;
+    downloadMillis += millis;
+  }
+
+  synchronized void recordExtraction(long bytes, long millis) {
+    bytesExtracted += bytes;
+    extractionMillis += millis;
+  }
+
+  synchronized void recordEvictions(long count) {
+    evictions += count;
+  }
+
+  synchronized boolean isEmpty() {
+    return hits == 0 && misses == 0 && bytesExtracted == 0 && extractionMillis == 0 && evictions == 0;
+  }
+
+  /**
+   * Add the counters of another instance to this one.
+   */
+  synchronized CacheStatistics add(CacheStatistics other) {
+    synchronized (other) {
+      hits += other.hits;
+      misses += other.misses;
+      bytesDownloaded += other.bytesDownloaded;
+      downloadMillis += other.downloadMillis;
+      bytesExtracted += other.bytesExtracted;
+      extractionMillis += other.extractionMillis;
+      evictions += other.evictions;
+    }
+    return this;
+  }
+
+  /**
+   * Move the counters of this instance to a new one.
+   */
+  synchronized CacheStatistics drain() {
+    var drained = new CacheStatistics().add(this);
+    hits = 0;
+    misses = 0;
+    bytesDownloaded = 0;
+    downloadMillis = 0;
+    bytesExtracted = 0;
+    extractionMillis = 0;
+    evictions = 0;
+    return drained;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+/**
+ * Check the free space of a disk before writing large files, so that provisioning fails early, without leaving partial
+ * files behind nor filling the disk of a shared agent.
+ */
+public final class DiskSpace {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiskSpace.class);
+
+  /**
+   * Space that is always left free for other processes
+   */
+  static final long RESERVE = 50L * 1024 * 1024;
+
+  private DiskSpace() {
+    // only static methods
+  }
+
+  static void logFreeSpace(Path dir) {
+    try {
+      LOG.debug("Free disk space for the user cache: {}", byteCountToDisplaySize(Files.getFileStore(dir).getUsableSpace()));
+    } catch (IOException e) {
+      LOG.debug("Unable to get the free space of {}", dir, e);
+    }
+  }
+
+  /**
+   * @param bytes the number of bytes about to be written in the given directory
+   * @throws InsufficientDiskSpaceException if the disk does not have enough free space. Nothing is checked if the free
+   *                                        space is unknown.
+   */
+  public static void check(Path dir, long bytes) {
+    long available;
+    try {
+      available = Files.getFileStore(dir).getUsableSpace();
+    } catch (IOException e) {
+      LOG.debug("Unable to get the free space of {}", dir, e);
+      return;
+    }
+    long required = bytes + RESERVE;
+    LOG.debug("Disk space check in {}: {} required, {} available", dir, byteCountToDisplaySize(required), byteCountToDisplaySize(available));
+    if (available < required) {
+      throw new InsufficientDiskSpaceException(dir, required, available);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record of an archive that was deleted after its extraction, written next to it in a {@code .dropped} file. It stands for
+ * the archive in the cache as long as the extracted directory is there.
+ */
+class DroppedArchive {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DroppedArchive.class);
+
+  static final String SUFFIX = ".dropped";
+
+  @SerializedName("hash")
+  private final String hash;
+  @SerializedName("size")
+  private final long size;
+
+  DroppedArchive(String hash, long size) {
+    this.hash = hash;
+    this.size = size;
+  }
+
+  String getHash() {
+    return hash;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  static Path recordFile(Path archive) {
+    return archive.resolveSibling(archive.getFileName() + SUFFIX);
+  }
+
+  static Optional<DroppedArchive> read(Path archive) {
+    var recordFile = recordFile(archive);
+    if (!Files.exists(recordFile)) {
+      return Optional.empty();
+    }
+    try {
+      var record = new Gson().fromJson(Files.readString(recordFile), DroppedArchive.class);
+      return Optional.ofNullable(record).filter(r -> r.hash != null);
+    } catch (IOException | JsonParseException e) {
+      LOG.debug("Unable to read {}", recordFile, e);
+      return Optional.empty();
+    }
+  }
+
+  void write(Path archive) throws IOException {
+    var recordFile = recordFile(archive);
+    var tempFile = Files.createTempFile(recordFile.getParent(), recordFile.getFileName().toString(), null);
+    Files.write(tempFile, new Gson().toJson(this).getBytes(StandardCharsets.UTF_8));
+    Files.move(tempFile, recordFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
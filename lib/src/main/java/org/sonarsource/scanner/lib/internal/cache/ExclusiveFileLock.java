@@ -0,0 +1,57 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Exclusive lock on a file of the cache, to update files shared by concurrent processes. File locks are held by the whole
+ * JVM, so the threads of a JVM first take turns on a monitor of the file.
+ */
+final class ExclusiveFileLock {
+
+  private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+  private ExclusiveFileLock() {
+    // only static methods
+  }
+
+  interface Action<T> {
+    T run() throws IOException;
+  }
+
+  /**
+   * Run the given action while holding the lock. The lock can still overlap with one taken by another class loader of the
+   * library, in which case an {@link java.nio.channels.OverlappingFileLockException} is thrown.
+   */
+  static <T> T run(Path lockFile, Action<T> action) throws IOException {
+    var key = lockFile.toAbsolutePath().normalize();
+    synchronized (MONITORS.computeIfAbsent(key, k -> new Object())) {
+      try (var channel = FileChannel.open(key, StandardOpenOption.CREATE, StandardOpenOption.WRITE); var lock = channel.lock()) {
+        return action.run();
+      }
+    }
+  }
+}
@@ -20,54 +20,344 @@
 package org.sonarsource.scanner.lib.internal.cache;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.ScannerProperties;
+
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS;
 
 /**
  * This class is responsible for managing Sonar batch file cache. You can put file into cache and
  * later try to retrieve them. The checksum is used to differentiate files (name is not secure as files may come
  * from different Sonar servers and have same name but be actually different, and same for SNAPSHOTs).
  */
-public class FileCache {
+public class FileCache implements AutoCloseable {
 
   private static final Logger LOG = LoggerFactory.getLogger(FileCache.class);
 
+  static final long UNLIMITED_SIZE = Long.MAX_VALUE;
+  static final String UNZIP_SUFFIX = "_unzip";
+  static final String DOWNLOAD_LOCK_SUFFIX = ".download.lock";
+  private static final ConcurrentMap<Path, CompletableFuture<CachedFile>> IN_FLIGHT_DOWNLOADS = new ConcurrentHashMap<>();
+  private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+)\\s*([KMGT]?)B?");
+  private static final long REMOTE_PUSH_TIMEOUT_SECONDS = 60;
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
   private final Path dir;
   private final Path tmpDir;
   private final FileHashes hashes;
+  private final long maxSize;
+  private final List<Path> readOnlyDirs;
+  private final boolean dropArchives;
+  @Nullable
+  private final SharedCache sharedCache;
+  @Nullable
+  private final RemoteCache remoteCache;
+  @Nullable
+  private final ExecutorService remotePushExecutor;
+  private final UsageIndex usageIndex;
+  private final CacheLeases leases;
+  private final CacheEvictor evictor;
+  private final CacheBundle bundle;
+  private final StatisticsFile statisticsFile;
+  private final BlobStore blobStore;
+  private final CacheStatistics pendingStatistics = new CacheStatistics();
+  private final List<CacheLeases.Lease> heldLeases = new ArrayList<>();
 
   FileCache(Path dir, FileHashes fileHashes) {
+    this(dir, fileHashes, new Settings());
+  }
+
+  FileCache(Path dir, FileHashes fileHashes, Settings settings) {
+    this.remoteCache = settings.remoteCache;
+    this.remotePushExecutor = remoteCache != null ? Executors.newSingleThreadExecutor(r -> {
+      var thread = new Thread(r, "sonar-cache-remote-push");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
     this.hashes = fileHashes;
+    this.maxSize = settings.maxSize;
+    this.readOnlyDirs = settings.readOnlyDirs;
+    this.dropArchives = settings.dropArchives;
     this.dir = createDir(dir, "user cache: ");
     LOG.info("User cache: {}", dir);
+    DiskSpace.logFreeSpace(dir);
     this.tmpDir = createDir(dir.resolve("_tmp"), "temp dir");
+    this.usageIndex = new UsageIndex(createDir(dir.resolve("_index"), "usage index dir"));
+    this.leases = new CacheLeases(createDir(dir.resolve("_leases"), "leases dir"));
+    this.blobStore = new BlobStore(dir);
+    this.evictor = new CacheEvictor(dir, usageIndex, leases, blobStore);
+    this.bundle = new CacheBundle(dir, tmpDir, fileHashes);
+    this.statisticsFile = new StatisticsFile(dir);
+    this.sharedCache = settings.sharedDir != null ? new SharedCache(settings.sharedDir, tmpDir) : null;
+  }
+
+  /**
+   * Optional features of a cache, all disabled by default. {@link #create(Path, Map, RemoteCache)} sets them from the
+   * properties.
+   */
+  static class Settings {
+    private long maxSize = UNLIMITED_SIZE;
+    private List<Path> readOnlyDirs = List.of();
+    private boolean dropArchives;
+    @Nullable
+    private Path sharedDir;
+    @Nullable
+    private RemoteCache remoteCache;
+
+    /**
+     * Size above which the least recently used entries are evicted.
+     */
+    Settings maxSize(long maxSize) {
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * Caches, for example pre-provisioned in a Docker image or shared on the network, that are searched in order before the
+     * writable one. Their entries are used in place.
+     */
+    Settings readOnlyDirs(List<Path> readOnlyDirs) {
+      this.readOnlyDirs = List.copyOf(readOnlyDirs);
+      return this;
+    }
+
+    /**
+     * Whether archives are deleted once extracted, see {@link FileCache#dropArchive(Path)}.
+     */
+    Settings dropArchives(boolean dropArchives) {
+      this.dropArchives = dropArchives;
+      return this;
+    }
+
+    /**
+     * The user cache, when the directory of the cache is a local staging directory used in its place, see {@link SharedCache}.
+     */
+    Settings sharedDir(@Nullable Path sharedDir) {
+      this.sharedDir = sharedDir;
+      return this;
+    }
+
+    /**
+     * Queried before downloading files, see {@link RemoteCache}.
+     */
+    Settings remoteCache(@Nullable RemoteCache remoteCache) {
+      this.remoteCache = remoteCache;
+      return this;
+    }
   }
 
   public static FileCache create(Path sonarUserHome) {
+    return create(sonarUserHome, Map.of());
+  }
+
+  public static FileCache create(Path sonarUserHome, Map<String, String> properties) {
+    return create(sonarUserHome, properties, null);
+  }
+
+  public static FileCache create(Path sonarUserHome, Map<String, String> properties, @Nullable RemoteCache remoteCache) {
     var dir = sonarUserHome.resolve("cache");
-    return new FileCache(dir, new FileHashes());
+    var stagingDir = stagingDir(dir, properties.get(ScannerProperties.SCANNER_CACHE_STAGING_DIR));
+    if (stagingDir != null) {
+      LOG.info("User cache {} is used through the local staging directory {}", dir, stagingDir);
+    }
+    var settings = new Settings()
+      .maxSize(parseSize(properties.get(ScannerProperties.SCANNER_CACHE_MAX_SIZE)))
+      .readOnlyDirs(parseReadOnlyDirs(properties.get(ScannerProperties.SCANNER_READ_ONLY_CACHES)))
+      .dropArchives(Boolean.parseBoolean(properties.get(ScannerProperties.SCANNER_DROP_ARCHIVES)))
+      .sharedDir(stagingDir != null ? dir : null)
+      .remoteCache(remoteCache);
+    return new FileCache(stagingDir != null ? stagingDir : dir, new FileHashes(), settings);
+  }
+
+  /**
+   * A local staging directory is used if configured, or if the user cache is on a network filesystem.
+   */
+  @CheckForNull
+  static Path stagingDir(Path dir, @Nullable String value) {
+    if (value != null && !value.isBlank()) {
+      var stagingDir = Paths.get(value.trim()).toAbsolutePath();
+      return stagingDir.equals(dir.toAbsolutePath()) ? null : stagingDir;
+    }
+    if (SharedCache.isOnNetworkFilesystem(dir)) {
+      LOG.debug("The user cache {} is on a network filesystem", dir);
+      var user = System.getProperty("user.name", "default").replaceAll("[^\\w.-]", "_");
+      return privateDir(Paths.get(System.getProperty("java.io.tmpdir"), "sonar-cache-" + user));
+    }
+    return null;
+  }
+
+  /**
+   * The automatic staging directory has a predictable name in the temp directory, which is shared by all the users of
+   * the machine, so someone else could create it first and plant files in it. It is created only accessible to the
+   * current user, and is not used if it already exists with other permissions or another owner.
+   */
+  @CheckForNull
+  static Path privateDir(Path dir) {
+    if (IS_OS_WINDOWS) {
+      // the temp directory is private to each user
+      return dir;
+    }
+    try {
+      try {
+        Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+      } catch (FileAlreadyExistsException e) {
+        // created by a previous analysis, checked below
+      }
+      var attributes = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      if (attributes.isDirectory() && attributes.permissions().equals(OWNER_ONLY) && attributes.owner().equals(currentUser(dir.getParent()))) {
+        return dir;
+      }
+      LOG.warn("The directory {} is not used as staging directory of the user cache, because it is not a directory only accessible "
+        + "by the current user. Set the property {} to use another directory.", dir, ScannerProperties.SCANNER_CACHE_STAGING_DIR);
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.debug("Unable to create the staging directory {}", dir, e);
+    }
+    return null;
+  }
+
+  private static UserPrincipal currentUser(Path tempDir) throws IOException {
+    var probe = Files.createTempFile(tempDir, "sonar-cache", null);
+    try {
+      return Files.getOwner(probe);
+    } finally {
+      Files.delete(probe);
+    }
+  }
+
+  private static List<Path> parseReadOnlyDirs(@Nullable String value) {
+    if (value == null) {
+      return List.of();
+    }
+    return Arrays.stream(value.split(","))
+      .map(String::trim)
+      .filter(s -> !s.isEmpty())
+      .map(Paths::get)
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Parse a size such as {@code 500MB} or {@code 10G}. Units are binary multiples.
+   */
+  static long parseSize(@Nullable String value) {
+    if (value == null || value.isBlank()) {
+      return UNLIMITED_SIZE;
+    }
+    var matcher = SIZE_PATTERN.matcher(value.trim().toUpperCase(Locale.ENGLISH));
+    if (!matcher.matches()) {
+      throw invalidSize(value);
+    }
+    int shift = " KMGT".indexOf(matcher.group(2).isEmpty() ? " " : matcher.group(2)) * 10;
+    try {
+      return Math.multiplyExact(Long.parseLong(matcher.group(1)), 1L << shift);
+    } catch (NumberFormatException | ArithmeticException e) {
+      // too large to be represented in bytes
+      throw invalidSize(value);
+    }
+  }
+
+  private static IllegalArgumentException invalidSize(String value) {
+    return new IllegalArgumentException("Invalid value for property " + ScannerProperties.SCANNER_CACHE_MAX_SIZE + ": " + value);
   }
 
   public Path getDir() {
     return dir;
   }
 
+  /**
+   * Whether the given file was found in one of the read-only caches. Files derived from it, for example an extracted
+   * archive, must be written to the writable cache.
+   */
+  public boolean isReadOnly(Path pathInCache) {
+    return readOnlyDirs.stream().anyMatch(pathInCache::startsWith);
+  }
+
+  /**
+   * The directory of the writable cache where files derived from the given file can be written. It is leased until this
+   * cache is closed.
+   */
+  public Path getWritableDir(Path pathInCache) {
+    var hash = pathInCache.getParent().getFileName().toString();
+    hold(leases.acquire(hash));
+    var hashDir = hashDir(hash);
+    mkdirQuietly(hashDir);
+    return hashDir;
+  }
+
+  @CheckForNull
+  private Path findInReadOnlyDirs(String filename, String hash) {
+    for (Path readOnlyDir : readOnlyDirs) {
+      Path cachedFile = CacheLayout.hashDir(readOnlyDir, hash).resolve(filename);
+      if (Files.exists(cachedFile)) {
+        LOG.debug("Found {} in the read-only cache {}", filename, readOnlyDir);
+        return cachedFile;
+      }
+    }
+    return null;
+  }
+
   /**
    * Look for a file in the cache by its filename and checksum. If the file is not
-   * present then return null.
+   * present then return null. Read-only caches are searched first.
    */
   @CheckForNull
   public Path get(String filename, String hash) {
-    Path cachedFile = dir.resolve(hash).resolve(filename);
+    var readOnlyFile = findInReadOnlyDirs(filename, hash);
+    if (readOnlyFile != null) {
+      return readOnlyFile;
+    }
+    var lease = leases.acquire(hash);
+    Path cachedFile = hashDir(hash).resolve(filename);
     if (Files.exists(cachedFile)) {
+      hold(lease);
+      touch(hash, cachedFile);
+      return cachedFile;
+    }
+    var hashAlgorithm = FileHashes.guessAlgorithm(hash);
+    if (sharedCache != null && hashAlgorithm != null && fetchFromSharedCache(filename, hash, hashAlgorithm)) {
+      hold(lease);
+      recordUsage(cachedFile);
       return cachedFile;
     }
+    lease.close();
     LOG.debug("No file found in the cache with name {} and hash {}", filename, hash);
     return null;
   }
@@ -75,30 +365,572 @@ public class FileCache {
   @FunctionalInterface
   public interface Downloader {
     void download(String filename, Path toFile) throws IOException;
+
+    /**
+     * Download the file and feed the downloaded bytes to the given digest. The default implementation reads the file back
+     * once it is downloaded. Implementations should override it to compute the digest while the file is written.
+     */
+    default void download(String filename, Path toFile, MessageDigest digest) throws IOException {
+      download(filename, toFile);
+      FileHashes.update(digest, toFile);
+    }
+  }
+
+  /**
+   * A remote tier of the cache, for example a cache node shared by a team, that is queried by hash before downloading a file
+   * from the server. Files fetched from it are verified like downloaded ones.
+   */
+  public interface RemoteCache {
+    /**
+     * Fetch the file with the given hash and feed the fetched bytes to the given digest.
+     *
+     * @return false if the remote cache does not have the file
+     */
+    boolean fetch(String filename, String hash, Path toFile, MessageDigest digest) throws IOException;
+
+    /**
+     * Push a file that was just downloaded from the server, and verified. Does nothing by default.
+     */
+    default void store(String filename, String hash, Path file) throws IOException {
+      // read-only remote cache
+    }
   }
 
+  /**
+   * Get a file from the cache, or download it if it is missing. The entry is leased, so that it is not evicted
+   * until this cache is closed.
+   */
   public CachedFile getOrDownload(String filename, String hash, String hashAlgorithm, Downloader downloader) {
-    // Does not fail if another process tries to create the directory at the same time.
+    var readOnlyFile = findInReadOnlyDirs(filename, hash);
+    if (readOnlyFile != null) {
+      pendingStatistics.recordHit();
+      return new CachedFile(readOnlyFile, true);
+    }
+    var lease = leases.acquire(hash);
+    try {
+      long start = System.nanoTime();
+      var cachedFile = doGetOrDownload(filename, hash, hashAlgorithm, downloader);
+      hold(lease);
+      if (cachedFile.isCacheHit()) {
+        pendingStatistics.recordHit();
+        touch(hash, cachedFile.getPathInCache());
+      } else {
+        pendingStatistics.recordDownload(sizeOf(cachedFile.getPathInCache()), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        recordUsage(cachedFile.getPathInCache());
+        persistStatistics();
+      }
+      return cachedFile;
+    } catch (RuntimeException e) {
+      lease.close();
+      throw e;
+    }
+  }
+
+  private CachedFile doGetOrDownload(String filename, String hash, String hashAlgorithm, Downloader downloader) {
     Path hashDir = hashDir(hash);
     Path targetFile = hashDir.resolve(filename);
-    if (Files.exists(targetFile)) {
+    if (Files.exists(targetFile) || isDropped(targetFile, hash)) {
       return new CachedFile(targetFile, true);
     }
+    // Only one thread of the JVM downloads a given file, the others wait for it and get a cache hit
+    var download = new CompletableFuture<CachedFile>();
+    var inFlight = IN_FLIGHT_DOWNLOADS.putIfAbsent(targetFile, download);
+    if (inFlight != null) {
+      LOG.debug("Waiting for the download of {} by another thread", filename);
+      return new CachedFile(awaitDownload(inFlight).getPathInCache(), true);
+    }
+    try {
+      var cachedFile = downloadWithLock(filename, hash, hashAlgorithm, downloader);
+      download.complete(cachedFile);
+      return cachedFile;
+    } catch (RuntimeException e) {
+      download.completeExceptionally(e);
+      throw e;
+    } finally {
+      IN_FLIGHT_DOWNLOADS.remove(targetFile, download);
+    }
+  }
+
+  private static CachedFile awaitDownload(CompletableFuture<CachedFile> inFlight) {
+    try {
+      return inFlight.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Only one process downloads a given file, the others wait for the lock and get a cache hit.
+   */
+  private CachedFile downloadWithLock(String filename, String hash, String hashAlgorithm, Downloader downloader) {
+    Path hashDir = hashDir(hash);
+    Path targetFile = hashDir.resolve(filename);
+    // Does not fail if another process tries to create the directory at the same time.
+    mkdirQuietly(hashDir);
+    var lockFile = hashDir.resolve(filename + DOWNLOAD_LOCK_SUFFIX);
+    try (var channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE); var lock = channel.lock()) {
+      if (Files.exists(targetFile) || isDropped(targetFile, hash)) {
+        LOG.debug("{} was downloaded by another process", filename);
+        return new CachedFile(targetFile, true);
+      }
+      if (sharedCache == null) {
+        return downloadAndVerify(filename, hash, hashAlgorithm, downloader);
+      }
+      if (fetchFromSharedCache(filename, hash, hashAlgorithm)) {
+        return new CachedFile(targetFile, true);
+      }
+      var cachedFile = downloadAndVerify(filename, hash, hashAlgorithm, downloader);
+      sharedCache.writeBack(filename, hash, targetFile);
+      return cachedFile;
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to lock " + lockFile, e);
+    }
+  }
+
+  private CachedFile downloadAndVerify(String filename, String hash, String hashAlgorithm, Downloader downloader) {
+    Path hashDir = hashDir(hash);
+    Path targetFile = hashDir.resolve(filename);
+    if (remoteCache != null && fetchFromRemoteCache(filename, hash, hashAlgorithm, targetFile)) {
+      return new CachedFile(targetFile, false);
+    }
     Path tempFile = newTempFile();
-    download(downloader, filename, tempFile);
-    String downloadedHash = hashes.of(tempFile.toFile(), hashAlgorithm);
+    var digest = hashes.newDigest(hashAlgorithm);
+    try {
+      download(downloader, filename, tempFile, digest);
+    } catch (InsufficientDiskSpaceException e) {
+      // nothing was written yet
+      ensureFreeSpace(tmpDir, e.getRequired() - DiskSpace.RESERVE);
+      digest = hashes.newDigest(hashAlgorithm);
+      download(downloader, filename, tempFile, digest);
+    }
+    String downloadedHash = hashes.of(digest);
     if (!hash.equals(downloadedHash)) {
       throw new HashMismatchException("INVALID HASH: File " + tempFile.toAbsolutePath() + " was expected to have hash " + hash
         + " but was downloaded with hash " + downloadedHash);
     }
-    mkdirQuietly(hashDir);
     renameQuietly(tempFile, targetFile);
+    if (remoteCache != null) {
+      pushToRemoteCache(filename, hash, targetFile);
+    }
     return new CachedFile(targetFile, false);
   }
 
-  private static void download(Downloader downloader, String filename, Path tempFile) {
+  /**
+   * Failures of the remote cache are not fatal, the file is then downloaded from the server.
+   */
+  private boolean fetchFromRemoteCache(String filename, String hash, String hashAlgorithm, Path targetFile) {
+    Path tempFile = newTempFile();
+    try {
+      var digest = hashes.newDigest(hashAlgorithm);
+      if (!requireNonNull(remoteCache).fetch(filename, hash, tempFile, digest)) {
+        LOG.debug("{} not found in the remote cache", filename);
+        deleteQuietly(tempFile);
+        return false;
+      }
+      String fetchedHash = hashes.of(digest);
+      if (!hash.equals(fetchedHash)) {
+        LOG.warn("{} was fetched from the remote cache with hash {} instead of {}, downloading it from the server", filename, fetchedHash, hash);
+        deleteQuietly(tempFile);
+        return false;
+      }
+      mkdirQuietly(targetFile.getParent());
+      renameQuietly(tempFile, targetFile);
+      LOG.debug("Fetched {} from the remote cache", filename);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Failed to fetch {} from the remote cache, downloading it from the server: {}", filename, e.getMessage());
+      LOG.debug("Remote cache failure", e);
+      deleteQuietly(tempFile);
+      return false;
+    }
+  }
+
+  /**
+   * Push, in the background, a downloaded file to the remote cache, so that the download lock is not held while uploading.
+   * The file is first hard linked in the temp directory, so that it can be dropped from the cache in the meantime.
+   */
+  private void pushToRemoteCache(String filename, String hash, Path file) {
+    var snapshot = tmpDir.resolve(UUID.randomUUID().toString());
+    try {
+      try {
+        Files.createLink(snapshot, file);
+      } catch (UnsupportedOperationException | IOException e) {
+        Files.copy(file, snapshot);
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to push {} to the remote cache", file, e);
+      return;
+    }
+    Runnable push = () -> {
+      try {
+        storeInRemoteCache(filename, hash, snapshot);
+      } finally {
+        deleteQuietly(snapshot);
+      }
+    };
+    try {
+      requireNonNull(remotePushExecutor).execute(push);
+    } catch (RejectedExecutionException e) {
+      // this cache was closed
+      push.run();
+    }
+  }
+
+  private void storeInRemoteCache(String filename, String hash, Path file) {
     try {
-      downloader.download(filename, tempFile);
+      requireNonNull(remoteCache).store(filename, hash, file);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Failed to push {} to the remote cache: {}", filename, e.getMessage());
+      LOG.debug("Remote cache failure", e);
+    }
+  }
+
+  /**
+   * Copy a file of the shared cache to this cache, and verify its hash.
+   *
+   * @return false if the file is not in the shared cache, or can't be copied
+   */
+  private boolean fetchFromSharedCache(String filename, String hash, String hashAlgorithm) {
+    var sharedFile = requireNonNull(sharedCache).find(filename, hash);
+    if (sharedFile == null) {
+      return false;
+    }
+    Path hashDir = hashDir(hash);
+    Path tempFile = newTempFile();
+    try {
+      Files.copy(sharedFile, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      if (!hash.equals(hashes.of(tempFile.toFile(), hashAlgorithm))) {
+        LOG.warn("The file {} of the shared cache is corrupted, downloading it again", sharedFile);
+        Files.delete(tempFile);
+        return false;
+      }
+      mkdirQuietly(hashDir);
+      renameQuietly(tempFile, hashDir.resolve(filename));
+      LOG.debug("Copied {} from the shared cache {}", filename, sharedCache.getDir());
+      return true;
+    } catch (IOException e) {
+      LOG.debug("Unable to copy {} from the shared cache", sharedFile, e);
+      deleteQuietly(tempFile);
+      return false;
+    }
+  }
+
+  /**
+   * Download again an archive that was dropped after its extraction, for example to repair the extracted directory.
+   */
+  public CachedFile downloadAgain(String filename, String hash, String hashAlgorithm, Downloader downloader) {
+    try {
+      Files.deleteIfExists(DroppedArchive.recordFile(hashDir(hash).resolve(filename)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to delete the record of the dropped archive " + filename, e);
+    }
+    return getOrDownload(filename, hash, hashAlgorithm, downloader);
+  }
+
+  /**
+   * Delete an archive that was extracted next to it, if enabled with {@link ScannerProperties#SCANNER_DROP_ARCHIVES}. It is
+   * replaced by a small record, so that it is still a cache hit as long as the extracted directory is there. Callers must
+   * {@link #downloadAgain(String, String, String, Downloader) download it again} if the archive is needed anyway, for
+   * example to repair the extracted directory.
+   */
+  public void dropArchive(Path pathInCache) {
+    var extractedDir = pathInCache.resolveSibling(pathInCache.getFileName() + UNZIP_SUFFIX);
+    if (!dropArchives || isReadOnly(pathInCache) || !Files.isRegularFile(pathInCache) || !Files.isDirectory(extractedDir)) {
+      return;
+    }
+    var hash = pathInCache.getParent().getFileName().toString();
+    try {
+      new DroppedArchive(hash, Files.size(pathInCache)).write(pathInCache);
+      Files.delete(pathInCache);
+    } catch (IOException e) {
+      LOG.debug("Unable to drop the archive {}", pathInCache, e);
+      return;
+    }
+    LOG.debug("Dropped the archive {} after its extraction", pathInCache);
+    recordUsage(pathInCache);
+  }
+
+  /**
+   * Size of a file of the cache, or of the archive it was before being {@link #dropArchive(Path) dropped}.
+   */
+  public long getFileSize(Path pathInCache) {
+    if (Files.isRegularFile(pathInCache)) {
+      return sizeOf(pathInCache);
+    }
+    return DroppedArchive.read(pathInCache).map(DroppedArchive::getSize).orElse(0L);
+  }
+
+  private static boolean isDropped(Path archive, String hash) {
+    return Files.isDirectory(archive.resolveSibling(archive.getFileName() + UNZIP_SUFFIX))
+      && DroppedArchive.read(archive).filter(r -> hash.equals(r.getHash())).isPresent();
+  }
+
+  /**
+   * Update the usage index after the content of an entry changed, for example when an archive was extracted next to it,
+   * and evict old entries if the cache is now too large. The size of the entry includes all the files derived from it in
+   * its hash directory, except the hard links to blobs, which are accounted for once by the {@link BlobStore}.
+   */
+  public void recordUsage(Path pathInCache) {
+    if (isReadOnly(pathInCache)) {
+      return;
+    }
+    var hash = pathInCache.getParent().getFileName().toString();
+    var extractedDir = pathInCache.resolveSibling(pathInCache.getFileName() + UNZIP_SUFFIX);
+    long size = exclusiveSizeOf(pathInCache.getParent());
+    var kind = Files.isDirectory(extractedDir) ? UsageIndex.Kind.ARCHIVE : UsageIndex.Kind.FILE;
+    usageIndex.record(hash, pathInCache.getFileName().toString(), kind, size, System.currentTimeMillis());
+    evictIfNeeded();
+  }
+
+  /**
+   * Pack entries of this cache into a single bundle file, to be imported in the cache of another machine.
+   *
+   * Directories where archives were extracted are not exported: they can't be verified on the other machine, so archives
+   * are extracted again there.
+   *
+   * @param hashes hashes of the entries to export
+   */
+  public void exportBundle(Collection<String> hashes, Path bundleFile) {
+    Map<String, String> entries = new LinkedHashMap<>();
+    List<CacheLeases.Lease> exportLeases = new ArrayList<>();
+    try {
+      for (String hash : hashes) {
+        exportLeases.add(leases.acquire(hash));
+        entries.put(hash, findFilename(hash));
+      }
+      bundle.export(entries, bundleFile);
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to export the bundle " + bundleFile, e);
+    } finally {
+      exportLeases.forEach(CacheLeases.Lease::close);
+    }
+  }
+
+  /**
+   * Install the entries of a bundle created by {@link #exportBundle(Collection, Path)}. Nothing is installed if
+   * the hash of any file of the bundle is wrong. Entries that are already in this cache are kept.
+   *
+   * @return the number of installed entries
+   */
+  public int importBundle(Path bundleFile) {
+    try (var staged = bundle.stage(bundleFile)) {
+      int installed = 0;
+      for (Map.Entry<String, String> entry : staged.getEntries().entrySet()) {
+        var hash = entry.getKey();
+        try (var lease = leases.acquire(hash)) {
+          if (install(staged.getHashDir(hash), hash, entry.getValue())) {
+            recordUsage(hashDir(hash).resolve(entry.getValue()));
+            installed++;
+          }
+        }
+      }
+      LOG.info("Imported {} entries in the user cache from {}", installed, bundleFile);
+      return installed;
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to import the bundle " + bundleFile, e);
+    }
+  }
+
+  /**
+   * Move a verified staged file into the cache.
+   */
+  private boolean install(Path stagedHashDir, String hash, String filename) {
+    var hashDir = hashDir(hash);
+    if (Files.exists(hashDir.resolve(filename))) {
+      return false;
+    }
+    mkdirQuietly(hashDir);
+    renameQuietly(stagedHashDir.resolve(filename), hashDir.resolve(filename));
+    return true;
+  }
+
+  private String findFilename(String hash) {
+    var hashDir = hashDir(hash);
+    var indexed = usageIndex.read(hash).map(UsageIndex.Entry::getFilename);
+    if (indexed.isPresent() && Files.isRegularFile(hashDir.resolve(indexed.get()))) {
+      return indexed.get();
+    }
+    if (indexed.isPresent() && DroppedArchive.read(hashDir.resolve(indexed.get())).isPresent()) {
+      throw new IllegalStateException("The archive of the entry with hash " + hash + " was dropped after its extraction, it can't be exported");
+    }
+    if (Files.isDirectory(hashDir)) {
+      try (Stream<Path> paths = Files.list(hashDir)) {
+        var filename = paths.filter(Files::isRegularFile)
+          .map(p -> p.getFileName().toString())
+          .filter(f -> !f.endsWith(".lock") && !f.endsWith(".manifest") && !f.endsWith(DroppedArchive.SUFFIX))
+          .findFirst();
+        if (filename.isPresent()) {
+          return filename.get();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Fail to list " + hashDir, e);
+      }
+    }
+    throw new IllegalStateException("No entry with hash " + hash + " in the user cache");
+  }
+
+  /**
+   * Replace the files of a freshly extracted directory by hard links to identical files extracted from other archives.
+   *
+   * @return the CRC32C of the files that were checked, by path, so that they are not computed again
+   */
+  public Map<Path, Long> deduplicate(Path extractedDir) {
+    var deduplication = blobStore.deduplicate(extractedDir);
+    if (deduplication.getSaved() > 0) {
+      LOG.debug("Saved {} by linking identical files of {}", FileUtils.byteCountToDisplaySize(deduplication.getSaved()), extractedDir);
+    }
+    // the files added to the store are not counted in the size of their entry anymore
+    usageIndex.addToTotal(deduplication.getStored());
+    return deduplication.getChecksums();
+  }
+
+  /**
+   * Make sure that the given number of bytes can be written in a directory of the disk of this cache. Least recently used
+   * entries are evicted if the disk is short of space, even if the cache is below its maximum size.
+   *
+   * @throws InsufficientDiskSpaceException if not enough space can be freed
+   */
+  public void ensureFreeSpace(Path dirInCache, long bytes) {
+    try {
+      DiskSpace.check(dirInCache, bytes);
+    } catch (InsufficientDiskSpaceException e) {
+      LOG.warn("{}, evicting entries of the user cache", e.getMessage());
+      pendingStatistics.recordEvictions(evictor.free(e.getRequired() - e.getAvailable()));
+      DiskSpace.check(dirInCache, bytes);
+    }
+  }
+
+  /**
+   * Count the extraction of an archive in the statistics of this cache.
+   */
+  public void recordExtraction(long bytes, long millis) {
+    pendingStatistics.recordExtraction(bytes, millis);
+    persistStatistics();
+  }
+
+  /**
+   * Statistics accumulated by all the processes using this cache, including the current one.
+   */
+  public CacheStatistics getStatistics() {
+    return statisticsFile.read().add(pendingStatistics);
+  }
+
+  private void touch(String hash, Path pathInCache) {
+    var entry = usageIndex.read(hash);
+    if (entry.isPresent()) {
+      usageIndex.record(hash, entry.get().getFilename(), entry.get().getKind(), entry.get().getSize(), System.currentTimeMillis());
+    } else {
+      recordUsage(pathInCache);
+    }
+  }
+
+  private void evictIfNeeded() {
+    if (maxSize != UNLIMITED_SIZE) {
+      pendingStatistics.recordEvictions(evictor.evict(maxSize));
+    }
+  }
+
+  private void hold(CacheLeases.Lease lease) {
+    synchronized (heldLeases) {
+      heldLeases.add(lease);
+    }
+  }
+
+  /**
+   * Merge the counters of this process into the statistics file. Done after each download or extraction, not only when
+   * closing, so that the statistics are not lost when the process is killed.
+   */
+  private void persistStatistics() {
+    var delta = pendingStatistics.drain();
+    if (!delta.isEmpty()) {
+      statisticsFile.merge(delta);
+    }
+  }
+
+  /**
+   * Wait for the pending pushes to the remote cache, for a bounded time, release the leases on the entries returned by
+   * this cache, so that they can be evicted, and persist the statistics.
+   */
+  @Override
+  public void close() {
+    if (sharedCache != null) {
+      sharedCache.close();
+    }
+    if (remotePushExecutor != null) {
+      awaitRemotePushes(remotePushExecutor);
+    }
+    persistStatistics();
+    synchronized (heldLeases) {
+      heldLeases.forEach(CacheLeases.Lease::close);
+      heldLeases.clear();
+    }
+  }
+
+  private static void awaitRemotePushes(ExecutorService executor) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(REMOTE_PUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Timeout while pushing files to the remote cache");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static long sizeOf(Path path) {
+    try (Stream<Path> files = Files.walk(path)) {
+      return files.filter(Files::isRegularFile).mapToLong(FileCache::sizeOfFile).sum();
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Unable to compute the size of {}", path, e);
+      return 0L;
+    }
+  }
+
+  /**
+   * Number of bytes freed by deleting a hash directory: the files of extracted directories that are hard links to blobs are
+   * not counted. Other files are always counted, even while they are temporarily linked elsewhere, for example by a
+   * snapshot being pushed to a remote cache.
+   */
+  static long exclusiveSizeOf(Path hashDir) {
+    try (Stream<Path> files = Files.walk(hashDir)) {
+      return files.filter(Files::isRegularFile)
+        .filter(f -> !isInExtractedDir(hashDir, f) || !BlobStore.isShared(f))
+        .mapToLong(FileCache::sizeOfFile)
+        .sum();
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Unable to compute the size of {}", hashDir, e);
+      return 0L;
+    }
+  }
+
+  private static boolean isInExtractedDir(Path hashDir, Path file) {
+    var relativePath = hashDir.relativize(file);
+    return relativePath.getNameCount() > 1 && relativePath.getName(0).toString().endsWith(UNZIP_SUFFIX);
+  }
+
+  private static long sizeOfFile(Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0L;
+    }
+  }
+
+  static long lastModifiedTime(Path path) {
+    try {
+      return Files.getLastModifiedTime(path).toMillis();
+    } catch (IOException e) {
+      return 0L;
+    }
+  }
+
+  private static void download(Downloader downloader, String filename, Path tempFile, MessageDigest digest) {
+    try {
+      downloader.download(filename, tempFile, digest);
     } catch (IOException e) {
       throw new IllegalStateException("Fail to download " + filename + " to " + tempFile, e);
     }
@@ -122,8 +954,16 @@ public class FileCache {
     }
   }
 
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
   private Path hashDir(String hash) {
-    return dir.resolve(hash);
+    return CacheLayout.hashDir(dir, hash);
   }
 
   private static void mkdirQuietly(Path hashDir) {
@@ -20,11 +20,16 @@
 package org.sonarsource.scanner.lib.internal.cache;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.annotation.CheckForNull;
 
 /**
  * Hashes used to store files in the cache directory.
@@ -33,12 +38,19 @@ import java.security.MessageDigest;
  */
 class FileHashes {
 
-  private static final int STREAM_BUFFER_LENGTH = 1024;
+  /**
+   * Large enough to amortize the cost of system calls on archives of hundreds of MB. Heap buffers are used because
+   * digests work on arrays: a direct or memory-mapped buffer would be copied to a temporary array anyway.
+   */
+  static final int BUFFER_SIZE = 128 * 1024;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
 
   String of(File file, String hashAlgorithm) {
     try {
-      return of(new FileInputStream(file), hashAlgorithm);
-    } catch (IOException e) {
+      var digest = MessageDigest.getInstance(hashAlgorithm);
+      update(digest, file.toPath());
+      return of(digest);
+    } catch (IOException | NoSuchAlgorithmException e) {
       throw new IllegalStateException("Fail to compute hash of: " + file.getAbsolutePath(), e);
     }
   }
@@ -56,19 +68,67 @@ class FileHashes {
     }
   }
 
+  /**
+   * The algorithm of a hash computed by the server, guessed from its length: MD5 for the plugins of the legacy scanner
+   * engine, SHA-256 for the JRE and the scanner engine.
+   */
+  @CheckForNull
+  static String guessAlgorithm(String hash) {
+    switch (hash.length()) {
+      case 32:
+        return "MD5";
+      case 64:
+        return "SHA-256";
+      default:
+        return null;
+    }
+  }
+
+  MessageDigest newDigest(String hashAlgorithm) {
+    try {
+      return MessageDigest.getInstance(hashAlgorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unsupported hash algorithm: " + hashAlgorithm, e);
+    }
+  }
+
+  /**
+   * Completes the computation of the given digest, which was fed while a file was downloaded.
+   */
+  String of(MessageDigest digest) {
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Feeds the content of a file to the given digest.
+   */
+  static void update(MessageDigest digest, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+  }
+
   private static byte[] digest(InputStream input, MessageDigest digest) throws IOException {
-    final byte[] buffer = new byte[STREAM_BUFFER_LENGTH];
-    int read = input.read(buffer, 0, STREAM_BUFFER_LENGTH);
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    int read = input.read(buffer, 0, BUFFER_SIZE);
     while (read > -1) {
       digest.update(buffer, 0, read);
-      read = input.read(buffer, 0, STREAM_BUFFER_LENGTH);
+      read = input.read(buffer, 0, BUFFER_SIZE);
     }
     return digest.digest();
   }
 
   static String toHex(byte[] bytes) {
-    BigInteger bi = new BigInteger(1, bytes);
-    String hexFormat = "%0" + (bytes.length << 1) + "x";
-    return String.format(hexFormat, bi);
+    byte[] hex = new byte[bytes.length << 1];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i << 1] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      hex[(i << 1) + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(hex, StandardCharsets.US_ASCII);
   }
 }
@@ -0,0 +1,173 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The user cache, when it is on a network filesystem and a local staging directory is used in its place. Locks, downloads
+ * and extractions only happen in the local directory, which is a regular {@link FileCache}. Files missing there are copied
+ * from the shared cache, and downloaded files are written back to it in the background.
+ * <p>
+ * No lock is ever taken on the shared cache, as {@code FileChannel} locks are unreliable on NFS and SMB. Files are written
+ * to a temp file then atomically renamed, so concurrent writers of the same file are harmless.
+ */
+class SharedCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedCache.class);
+
+  private static final Set<String> NETWORK_FILESYSTEMS = Set.of("nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "smb3", "afpfs", "webdav",
+    "davfs", "fuse.sshfs", "ncpfs", "9p");
+  private static final long WRITE_BACK_TIMEOUT_MINUTES = 5;
+
+  private final Path dir;
+  private final Path tmpDir;
+  private final Path localTmpDir;
+  private final ExecutorService writeBackExecutor = Executors.newSingleThreadExecutor(r -> {
+    var thread = new Thread(r, "sonar-cache-write-back");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  SharedCache(Path dir, Path localTmpDir) {
+    this.dir = dir;
+    this.tmpDir = dir.resolve("_tmp");
+    this.localTmpDir = localTmpDir;
+  }
+
+  Path getDir() {
+    return dir;
+  }
+
+  /**
+   * Whether the given directory is on a network filesystem, where many small file operations and locks are slow or
+   * unreliable.
+   */
+  static boolean isOnNetworkFilesystem(Path path) {
+    if (path.toAbsolutePath().toString().startsWith("\\\\")) {
+      // UNC path on Windows
+      return true;
+    }
+    try {
+      var existing = path.toAbsolutePath();
+      while (existing != null && !Files.exists(existing)) {
+        existing = existing.getParent();
+      }
+      return existing != null && NETWORK_FILESYSTEMS.contains(Files.getFileStore(existing).type().toLowerCase(Locale.ENGLISH));
+    } catch (IOException e) {
+      LOG.debug("Unable to get the filesystem of {}", path, e);
+      return false;
+    }
+  }
+
+  /**
+   * The file with the given hash in the shared cache, if any.
+   */
+  @CheckForNull
+  Path find(String filename, String hash) {
+    var file = CacheLayout.hashDir(dir, hash).resolve(filename);
+    return Files.isRegularFile(file) ? file : null;
+  }
+
+  /**
+   * Copy, in the background, a file of the local cache to the shared cache. The file is first hard linked in the local
+   * temp directory, so that it can be deleted from the local cache in the meantime.
+   */
+  void writeBack(String filename, String hash, Path localFile) {
+    Path snapshot;
+    try {
+      snapshot = localTmpDir.resolve(UUID.randomUUID().toString());
+      try {
+        Files.createLink(snapshot, localFile);
+      } catch (UnsupportedOperationException | IOException e) {
+        Files.copy(localFile, snapshot);
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to write {} back to the shared cache", localFile, e);
+      return;
+    }
+    writeBackExecutor.execute(() -> {
+      try {
+        doWriteBack(filename, hash, snapshot);
+      } finally {
+        deleteQuietly(snapshot);
+      }
+    });
+  }
+
+  private void doWriteBack(String filename, String hash, Path snapshot) {
+    if (find(filename, hash) != null) {
+      return;
+    }
+    var target = CacheLayout.shardedHashDir(dir, hash).resolve(filename);
+    Path tempFile = null;
+    try {
+      Files.createDirectories(tmpDir);
+      tempFile = Files.createTempFile(tmpDir, "writeBack", null);
+      Files.copy(snapshot, tempFile, StandardCopyOption.REPLACE_EXISTING);
+      Files.createDirectories(target.getParent());
+      Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+      LOG.debug("Wrote {} back to the shared cache {}", filename, dir);
+    } catch (FileAlreadyExistsException e) {
+      // written back by another machine in the meantime
+    } catch (IOException e) {
+      LOG.debug("Unable to write {} back to the shared cache {}", filename, dir, e);
+    } finally {
+      if (tempFile != null) {
+        deleteQuietly(tempFile);
+      }
+    }
+  }
+
+  /**
+   * Wait for the pending writes to the shared cache.
+   */
+  void close() {
+    writeBackExecutor.shutdown();
+    try {
+      if (!writeBackExecutor.awaitTermination(WRITE_BACK_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+        LOG.warn("Timeout while writing files back to the shared cache {}", dir);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
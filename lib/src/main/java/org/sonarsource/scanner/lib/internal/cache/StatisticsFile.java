@@ -0,0 +1,79 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent {@link CacheStatistics}. Concurrent processes merge their counters under an exclusive lock, and the file
+ * is replaced atomically so that it can always be read without lock.
+ */
+class StatisticsFile {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StatisticsFile.class);
+
+  private final Path file;
+  private final Path lockFile;
+  private final Gson gson = new Gson();
+
+  StatisticsFile(Path cacheDir) {
+    this.file = cacheDir.resolve("_stats.json");
+    this.lockFile = cacheDir.resolve("_stats.lock");
+  }
+
+  CacheStatistics read() {
+    if (!Files.exists(file)) {
+      return new CacheStatistics();
+    }
+    try {
+      var statistics = gson.fromJson(Files.readString(file), CacheStatistics.class);
+      return statistics != null ? statistics : new CacheStatistics();
+    } catch (IOException | JsonParseException e) {
+      LOG.debug("Unable to read the statistics of the user cache {}", file, e);
+      return new CacheStatistics();
+    }
+  }
+
+  /**
+   * Add the given counters to the persisted ones. Statistics are best effort, a failure is only logged.
+   */
+  void merge(CacheStatistics delta) {
+    try {
+      ExclusiveFileLock.run(lockFile, () -> {
+        var statistics = read().add(delta);
+        var tempFile = Files.createTempFile(file.getParent(), "_stats", null);
+        Files.write(tempFile, gson.toJson(statistics).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return null;
+      });
+    } catch (IOException | OverlappingFileLockException e) {
+      LOG.debug("Unable to update the statistics of the user cache {}", file, e);
+    }
+  }
+}
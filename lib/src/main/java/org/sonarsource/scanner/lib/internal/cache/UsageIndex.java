@@ -0,0 +1,239 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import java.io.IOException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the usage of cache entries, used to evict the least recently used ones. There is one small JSON file
+ * per hash, so that the last access of an entry is recorded without locking a shared index. Files are sharded like the
+ * entries of the cache. Changes of the size of an entry also update a {@link #readTotal() running total} under a lock.
+ * The index is best effort: a missing or unreadable record is not an error.
+ */
+class UsageIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UsageIndex.class);
+
+  enum Kind {
+    /**
+     * A downloaded file
+     */
+    FILE,
+    /**
+     * A downloaded archive, together with its extracted {@code _unzip} directory
+     */
+    ARCHIVE
+  }
+
+  private static final long MAX_TOTAL_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final Path indexDir;
+  private final Path totalFile;
+  private final Path lockFile;
+  private final Gson gson = new Gson();
+
+  UsageIndex(Path indexDir) {
+    this.indexDir = indexDir;
+    this.totalFile = indexDir.resolve("_total.json");
+    this.lockFile = indexDir.resolve("_total.lock");
+  }
+
+  void record(String hash, String filename, Kind kind, long size, long lastAccess) {
+    var entry = new Entry(filename, kind, size, lastAccess);
+    if (read(hash).filter(e -> e.getSize() == size).isPresent()) {
+      // only the time of the last access changes
+      try {
+        write(hash, entry);
+      } catch (IOException e) {
+        LOG.debug("Unable to update the usage of {}", hash, e);
+      }
+      return;
+    }
+    updateTotal(() -> {
+      long previousSize = read(hash).map(Entry::getSize).orElse(0L);
+      write(hash, entry);
+      return size - previousSize;
+    });
+  }
+
+  private void write(String hash, Entry entry) throws IOException {
+    var recordFile = recordFile(hash);
+    Files.createDirectories(recordFile.getParent());
+    var tempFile = Files.createTempFile(recordFile.getParent(), hash, null);
+    Files.write(tempFile, gson.toJson(entry).getBytes(StandardCharsets.UTF_8));
+    Files.move(tempFile, recordFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  Optional<Entry> read(String hash) {
+    var recordFile = recordFile(hash);
+    if (!Files.exists(recordFile)) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.ofNullable(gson.fromJson(Files.readString(recordFile), Entry.class));
+    } catch (IOException | JsonParseException e) {
+      LOG.debug("Unable to read the usage of {}", recordFile, e);
+      return Optional.empty();
+    }
+  }
+
+  void remove(String hash) {
+    updateTotal(() -> {
+      long previousSize = read(hash).map(Entry::getSize).orElse(0L);
+      Files.deleteIfExists(recordFile(hash));
+      return -previousSize;
+    });
+  }
+
+  /**
+   * Running total of the size of the cache, kept up to date by the changes of the records, so that the size of the cache
+   * is known without listing its entries. It misses the changes of older versions of the library, so it is computed
+   * again from the entries every day.
+   *
+   * @return empty if the total has to be computed again
+   */
+  OptionalLong readTotal() {
+    var total = readTotalFile();
+    if (total == null || total.computedAt < System.currentTimeMillis() - MAX_TOTAL_AGE_MILLIS) {
+      return OptionalLong.empty();
+    }
+    return OptionalLong.of(total.size);
+  }
+
+  /**
+   * Replace the running total by a size computed from the entries of the cache.
+   */
+  void resetTotal(long size) {
+    updateTotal(() -> {
+      writeTotal(new Total(size, System.currentTimeMillis()));
+      return 0L;
+    });
+  }
+
+  /**
+   * Add to the running total a change of size that is not recorded by an entry, such as blobs added or deleted.
+   */
+  void addToTotal(long delta) {
+    if (delta != 0) {
+      updateTotal(() -> delta);
+    }
+  }
+
+  /**
+   * Run a change of the index and add the returned difference of size to the running total, if any.
+   */
+  private void updateTotal(ExclusiveFileLock.Action<Long> change) {
+    try {
+      ExclusiveFileLock.run(lockFile, () -> {
+        long delta = change.run();
+        var total = readTotalFile();
+        if (total != null && delta != 0) {
+          writeTotal(new Total(total.size + delta, total.computedAt));
+        }
+        return null;
+      });
+    } catch (IOException | OverlappingFileLockException e) {
+      LOG.debug("Unable to update the usage index {}", indexDir, e);
+    }
+  }
+
+  @CheckForNull
+  private Total readTotalFile() {
+    if (!Files.exists(totalFile)) {
+      return null;
+    }
+    try {
+      return gson.fromJson(Files.readString(totalFile), Total.class);
+    } catch (IOException | JsonParseException e) {
+      LOG.debug("Unable to read the total size of the user cache {}", totalFile, e);
+      return null;
+    }
+  }
+
+  private void writeTotal(Total total) throws IOException {
+    var tempFile = Files.createTempFile(indexDir, "_total", null);
+    Files.write(tempFile, gson.toJson(total).getBytes(StandardCharsets.UTF_8));
+    Files.move(tempFile, totalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Path recordFile(String hash) {
+    return CacheLayout.shardedFile(indexDir, hash, ".json");
+  }
+
+  private static class Total {
+    @SerializedName("size")
+    private final long size;
+    @SerializedName("computedAt")
+    private final long computedAt;
+
+    private Total(long size, long computedAt) {
+      this.size = size;
+      this.computedAt = computedAt;
+    }
+  }
+
+  static class Entry {
+    @SerializedName("filename")
+    private final String filename;
+    @SerializedName("kind")
+    private final Kind kind;
+    @SerializedName("size")
+    private final long size;
+    @SerializedName("lastAccess")
+    private final long lastAccess;
+
+    Entry(String filename, Kind kind, long size, long lastAccess) {
+      this.filename = filename;
+      this.kind = kind;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+
+    String getFilename() {
+      return filename;
+    }
+
+    Kind getKind() {
+      return kind;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getLastAccess() {
+      return lastAccess;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonarsource.scanner.lib.ScannerProperties;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
+
+import static java.lang.String.format;
+
+/**
+ * {@link FileCache.RemoteCache} backed by a plain HTTP server, in the spirit of the Gradle HTTP build cache: files are
+ * fetched with {@code GET <url>/<hash>} and pushed with {@code PUT <url>/<hash>}. A 404 response is a cache miss.
+ */
+public class HttpRemoteCache implements FileCache.RemoteCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HttpRemoteCache.class);
+  private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+  private static final int NOT_FOUND = 404;
+
+  private final String baseUrl;
+  private final boolean push;
+  @Nullable
+  private final String token;
+  private final OkHttpClient httpClient;
+
+  HttpRemoteCache(String baseUrl, boolean push, @Nullable String token, OkHttpClient httpClient) {
+    this.baseUrl = ServerConnection.removeTrailingSlash(baseUrl);
+    this.push = push;
+    this.token = token;
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * @return null if no remote cache is configured
+   */
+  @CheckForNull
+  public static HttpRemoteCache create(Map<String, String> bootstrapProperties, Path sonarUserHome) {
+    var url = bootstrapProperties.get(ScannerProperties.SCANNER_REMOTE_CACHE_URL);
+    if (StringUtils.isBlank(url)) {
+      return null;
+    }
+    var push = Boolean.parseBoolean(bootstrapProperties.get(ScannerProperties.SCANNER_REMOTE_CACHE_PUSH));
+    LOG.info("Remote cache: {}{}", url, push ? " (push enabled)" : "");
+    return new HttpRemoteCache(url.trim(), push, bootstrapProperties.get(ScannerProperties.SCANNER_REMOTE_CACHE_TOKEN),
+      OkHttpClientFactory.create(bootstrapProperties, sonarUserHome));
+  }
+
+  @Override
+  public boolean fetch(String filename, String hash, Path toFile, MessageDigest digest) throws IOException {
+    var request = newRequest(hash).get().build();
+    try (var response = httpClient.newCall(request).execute()) {
+      if (response.code() == NOT_FOUND) {
+        return false;
+      }
+      if (!response.isSuccessful()) {
+        throw new IllegalStateException(format("Error status returned by url [%s]: %s", request.url(), response.code()));
+      }
+      try (InputStream in = response.body().byteStream(); OutputStream out = new DigestOutputStream(Files.newOutputStream(toFile), digest)) {
+        in.transferTo(out);
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public void store(String filename, String hash, Path file) throws IOException {
+    if (!push) {
+      return;
+    }
+    var request = newRequest(hash).put(RequestBody.create(file.toFile(), OCTET_STREAM)).build();
+    try (var response = httpClient.newCall(request).execute()) {
+      if (!response.isSuccessful()) {
+        throw new IllegalStateException(format("Error status returned by url [%s]: %s", request.url(), response.code()));
+      }
+      LOG.debug("Pushed {} to the remote cache", filename);
+    }
+  }
+
+  private Request.Builder newRequest(String hash) {
+    var builder = new Request.Builder().url(baseUrl + "/" + hash);
+    if (token != null) {
+      builder.header("Authorization", "Bearer " + token);
+    }
+    return builder;
+  }
+}
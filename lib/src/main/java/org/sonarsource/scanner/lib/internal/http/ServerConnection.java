@@ -21,9 +21,11 @@ package org.sonarsource.scanner.lib.internal.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Map;
 import javax.annotation.Nullable;
 import okhttp3.Credentials;
@@ -31,11 +33,14 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonarsource.scanner.lib.ScannerProperties;
 import org.sonarsource.scanner.lib.Utils;
 import org.sonarsource.scanner.lib.internal.InternalProperties;
+import org.sonarsource.scanner.lib.internal.cache.DiskSpace;
+import org.sonarsource.scanner.lib.internal.cache.InsufficientDiskSpaceException;
 
 import static java.lang.String.format;
 
@@ -72,23 +77,64 @@ public class ServerConnection {
   }
 
   public void downloadFromRestApi(String urlPath, Path toFile) throws IOException {
+    downloadFromRestApi(urlPath, toFile, null);
+  }
+
+  /**
+   * Same as {@link #downloadFromRestApi(String, Path)}, but also feeds the downloaded bytes to the given digest.
+   */
+  public void downloadFromRestApi(String urlPath, Path toFile, @Nullable MessageDigest digest) throws IOException {
     if (!urlPath.startsWith("/")) {
       throw new IllegalArgumentException(format(EXCEPTION_MESSAGE_MISSING_SLASH, urlPath));
     }
     String url = restApiBaseUrl + urlPath;
-    downloadFile(url, toFile, true);
+    downloadFile(url, toFile, true, digest, null);
+  }
+
+  /**
+   * Same as {@link #downloadFromRestApi(String, Path, MessageDigest)}, but the downloaded bytes are also written to the given
+   * stream, which is closed at the end of the download.
+   */
+  public void downloadFromRestApi(String urlPath, Path toFile, @Nullable MessageDigest digest, OutputStream tee) throws IOException {
+    if (!urlPath.startsWith("/")) {
+      throw new IllegalArgumentException(format(EXCEPTION_MESSAGE_MISSING_SLASH, urlPath));
+    }
+    String url = restApiBaseUrl + urlPath;
+    downloadFile(url, toFile, true, digest, tee);
   }
 
   public void downloadFromWebApi(String urlPath, Path toFile) throws IOException {
+    downloadFromWebApi(urlPath, toFile, null);
+  }
+
+  /**
+   * Same as {@link #downloadFromWebApi(String, Path)}, but also feeds the downloaded bytes to the given digest.
+   */
+  public void downloadFromWebApi(String urlPath, Path toFile, @Nullable MessageDigest digest) throws IOException {
     if (!urlPath.startsWith("/")) {
       throw new IllegalArgumentException(format(EXCEPTION_MESSAGE_MISSING_SLASH, urlPath));
     }
     String url = webApiBaseUrl + urlPath;
-    downloadFile(url, toFile, true);
+    downloadFile(url, toFile, true, digest, null);
   }
 
   public void downloadFromExternalUrl(String url, Path toFile) throws IOException {
-    downloadFile(url, toFile, false);
+    downloadFromExternalUrl(url, toFile, null);
+  }
+
+  /**
+   * Same as {@link #downloadFromExternalUrl(String, Path)}, but also feeds the downloaded bytes to the given digest.
+   */
+  public void downloadFromExternalUrl(String url, Path toFile, @Nullable MessageDigest digest) throws IOException {
+    downloadFile(url, toFile, false, digest, null);
+  }
+
+  /**
+   * Same as {@link #downloadFromExternalUrl(String, Path, MessageDigest)}, but the downloaded bytes are also written to the
+   * given stream, which is closed at the end of the download.
+   */
+  public void downloadFromExternalUrl(String url, Path toFile, @Nullable MessageDigest digest, OutputStream tee) throws IOException {
+    downloadFile(url, toFile, false, digest, tee);
   }
 
   /**
@@ -97,24 +143,42 @@ public class ServerConnection {
    * @param url            the URL of the file to download
    * @param toFile         the target file
    * @param authentication if true, the request will be authenticated with the token
+   * @param digest         if not null, the downloaded bytes are digested while they are written to the target file
+   * @param tee            if not null, the downloaded bytes are also written to this stream
    * @throws IOException           if connectivity problem or timeout (network) or IO error (when writing to file)
    * @throws IllegalStateException if HTTP response code is different than 2xx
+   * @throws InsufficientDiskSpaceException if the response is larger than the free space of the disk
    */
-  private void downloadFile(String url, Path toFile, boolean authentication) throws IOException {
+  private void downloadFile(String url, Path toFile, boolean authentication, @Nullable MessageDigest digest, @Nullable OutputStream tee)
+    throws IOException {
     if (httpClient == null) {
       throw new IllegalStateException("ServerConnection must be initialized");
     }
     LOG.debug("Download {} to {}", url, toFile.toAbsolutePath());
 
-    try (ResponseBody responseBody = callUrl(url, authentication, "application/octet-stream");
-      InputStream in = responseBody.byteStream()) {
-      Files.copy(in, toFile, StandardCopyOption.REPLACE_EXISTING);
+    try (ResponseBody responseBody = callUrl(url, authentication, "application/octet-stream")) {
+      long contentLength = responseBody.contentLength();
+      if (contentLength > 0) {
+        // fail before writing anything
+        DiskSpace.check(toFile.toAbsolutePath().getParent(), contentLength);
+      }
+      try (InputStream in = responseBody.byteStream(); OutputStream out = sink(toFile, digest, tee)) {
+        in.transferTo(out);
+      }
     } catch (IOException | RuntimeException e) {
       Utils.deleteQuietly(toFile);
       throw e;
     }
   }
 
+  private static OutputStream sink(Path toFile, @Nullable MessageDigest digest, @Nullable OutputStream tee) throws IOException {
+    OutputStream out = Files.newOutputStream(toFile);
+    if (digest != null) {
+      out = new DigestOutputStream(out, digest);
+    }
+    return tee != null ? new TeeOutputStream(out, tee) : out;
+  }
+
   public String callRestApi(String urlPath) throws IOException {
     if (!urlPath.startsWith("/")) {
       throw new IllegalArgumentException(format(EXCEPTION_MESSAGE_MISSING_SLASH, urlPath));
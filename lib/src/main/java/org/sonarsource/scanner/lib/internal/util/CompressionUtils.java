@@ -19,25 +19,42 @@
  */
 package org.sonarsource.scanner.lib.internal.util;
 
+import io.airlift.compress.zstd.ZstdDecompressor;
+import io.airlift.compress.zstd.ZstdInputStream;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 
 import static org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS;
 
@@ -53,6 +70,13 @@ public final class CompressionUtils {
     PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
     PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ);
   private static final int MAX_MODE = (1 << POSIX_PERMISSIONS.size()) - 1;
+  // header and trailer
+  private static final int GZIP_MIN_SIZE = 18;
+  // magic number and largest frame header
+  private static final int ZSTD_MAX_FRAME_HEADER_SIZE = 18;
+  private static final int MAX_WRITE_SIZE = 256 * 1024;
+  // heap buffers, as decompressors only fill byte arrays. Channels already copy them to a direct buffer cached by the thread.
+  private static final ThreadLocal<byte[]> WRITE_BUFFERS = ThreadLocal.withInitial(() -> new byte[MAX_WRITE_SIZE]);
 
   private CompressionUtils() {
     // utility class
@@ -100,6 +124,82 @@ public final class CompressionUtils {
     }
   }
 
+  /**
+   * Same as {@link #unzip(Path, Path, Predicate)}, but files are inflated concurrently. Directories are created first,
+   * then files are extracted on a pool of the given number of threads. On failure, the extraction of the remaining files
+   * is cancelled.
+   *
+   * @param threads the maximum number of files inflated at the same time. The extraction is sequential if it is 1.
+   */
+  public static Path unzip(Path zip, Path toDir, Predicate<ZipEntry> filter, int threads) throws IOException {
+    if (threads <= 1) {
+      return unzip(zip, toDir, filter);
+    }
+    Path targetDirNormalizedPath = toDir.normalize();
+    try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+      Map<ZipEntry, Path> files = new LinkedHashMap<>();
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (filter.test(entry)) {
+          var target = toDir.resolve(entry.getName());
+          verifyInsideTargetDirectory(entry, target, targetDirNormalizedPath);
+          if (entry.isDirectory()) {
+            throwExceptionIfDirectoryIsNotCreatable(target);
+          } else {
+            throwExceptionIfDirectoryIsNotCreatable(target.getParent());
+            files.put(entry, target);
+          }
+        }
+      }
+      copyConcurrently(zipFile, files, threads);
+      return toDir;
+    }
+  }
+
+  private static void copyConcurrently(ZipFile zipFile, Map<ZipEntry, Path> files, int threads) throws IOException {
+    if (files.isEmpty()) {
+      return;
+    }
+    var executor = Executors.newFixedThreadPool(Math.min(threads, files.size()), r -> {
+      var thread = new Thread(r, "sonar-unzip");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      var completion = new ExecutorCompletionService<Void>(executor);
+      files.forEach((entry, target) -> completion.submit(() -> {
+        copy(zipFile, entry, target);
+        return null;
+      }));
+      for (int i = 0; i < files.size(); i++) {
+        completion.take().get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("Fail to unzip " + zipFile.getName(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while unzipping " + zipFile.getName(), e);
+    } finally {
+      executor.shutdownNow();
+      awaitTermination(executor);
+    }
+  }
+
+  /**
+   * Files must not be written anymore once the zip file is closed, or the target directory deleted.
+   */
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private static void verifyInsideTargetDirectory(ZipEntry entry, Path entryPath, Path targetDirNormalizedPath) {
     if (!entryPath.normalize().startsWith(targetDirNormalizedPath)) {
       // vulnerability - trying to create a file outside the target directory
@@ -107,6 +207,12 @@ public final class CompressionUtils {
     }
   }
 
+  private static void verifyInsideTargetDirectory(TarArchiveEntry entry, Path entryPath, Path targetDirNormalizedPath) {
+    if (!entryPath.normalize().startsWith(targetDirNormalizedPath)) {
+      throw new IllegalStateException("Extracting an entry outside the target directory is not allowed: " + entry.getName());
+    }
+  }
+
   private static void throwExceptionIfDirectoryIsNotCreatable(Path to) throws IOException {
     try {
       Files.createDirectories(to);
@@ -116,31 +222,131 @@ public final class CompressionUtils {
   }
 
   private static void copy(ZipFile zipFile, ZipEntry entry, Path to) throws IOException {
-    try (InputStream input = zipFile.getInputStream(entry);
-      OutputStream fos = Files.newOutputStream(to)) {
-      IOUtils.copy(input, fos);
+    try (InputStream input = zipFile.getInputStream(entry)) {
+      write(input, entry.getSize(), to);
+    }
+  }
+
+  /**
+   * Write an entry to a file, with writes as large as the entry up to {@link #MAX_WRITE_SIZE}, rather than 8 KB ones, from
+   * a buffer reused by the thread. The file is created without checking first whether it exists, as archives are usually
+   * extracted in a new directory. An existing file is replaced rather than overwritten, as it may be a hard link shared with
+   * other directories.
+   *
+   * @param size the size of the entry, or -1 if unknown
+   */
+  private static void write(InputStream in, long size, Path to) throws IOException {
+    byte[] buffer = WRITE_BUFFERS.get();
+    int length = size >= 0 ? (int) Math.min(Math.max(size, 1), MAX_WRITE_SIZE) : MAX_WRITE_SIZE;
+    try (FileChannel channel = createFile(to)) {
+      int read;
+      while ((read = IOUtils.read(in, buffer, 0, length)) > 0) {
+        var byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+        while (byteBuffer.hasRemaining()) {
+          channel.write(byteBuffer);
+        }
+      }
+    }
+  }
+
+  private static FileChannel createFile(Path file) throws IOException {
+    try {
+      return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    } catch (FileAlreadyExistsException e) {
+      Files.delete(file);
+      return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
     }
   }
 
   public static void extractTarGz(Path compressedFile, Path targetDir) throws IOException {
-    try (InputStream fis = Files.newInputStream(compressedFile);
-      InputStream bis = new BufferedInputStream(fis);
-      InputStream gzis = new GzipCompressorInputStream(bis);
-      TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(gzis)) {
-      TarArchiveEntry targzEntry;
-      while ((targzEntry = tarArchiveInputStream.getNextEntry()) != null) {
-        if (!tarArchiveInputStream.canReadEntryData(targzEntry)) {
+    extractTarGz(compressedFile, targetDir, e -> true);
+  }
+
+  /**
+   * Extract a tar.gz file to a directory.
+   *
+   * @param compressedFile the tar.gz file. It must exist.
+   * @param targetDir      the target directory. It is created if needed.
+   * @param filter         filter tar entries so that only a subset of directories/files can be
+   *                       extracted to target directory.
+   */
+  public static void extractTarGz(Path compressedFile, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    try (InputStream fis = Files.newInputStream(compressedFile)) {
+      extractTarGz(fis, targetDir, filter);
+    }
+  }
+
+  /**
+   * Extract a tar.gz stream to a directory, for example while it is being downloaded. The stream is read up to the end of
+   * the tar archive, and is not closed.
+   *
+   * @param in        the tar.gz content
+   * @param targetDir the target directory. It is created if needed.
+   * @param filter    filter tar entries so that only a subset of directories/files can be
+   *                  extracted to target directory.
+   */
+  public static void extractTarGz(InputStream in, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    extractTar(new GzipCompressorInputStream(shielded(in)), targetDir, filter);
+  }
+
+  /**
+   * Extract a tar.xz file to a directory, see {@link #extractTarGz(Path, Path, Predicate)}.
+   */
+  public static void extractTarXz(Path compressedFile, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    try (InputStream fis = Files.newInputStream(compressedFile)) {
+      extractTarXz(fis, targetDir, filter);
+    }
+  }
+
+  /**
+   * Extract a tar.xz stream to a directory, see {@link #extractTarGz(InputStream, Path, Predicate)}.
+   */
+  public static void extractTarXz(InputStream in, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    extractTar(new XZCompressorInputStream(shielded(in)), targetDir, filter);
+  }
+
+  /**
+   * Extract a tar.zst file to a directory, see {@link #extractTarGz(Path, Path, Predicate)}.
+   */
+  public static void extractTarZstd(Path compressedFile, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    try (InputStream fis = Files.newInputStream(compressedFile)) {
+      extractTarZstd(fis, targetDir, filter);
+    }
+  }
+
+  /**
+   * Extract a tar.zst stream to a directory, see {@link #extractTarGz(InputStream, Path, Predicate)}.
+   */
+  public static void extractTarZstd(InputStream in, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    extractTar(new ZstdInputStream(shielded(in)), targetDir, filter);
+  }
+
+  /**
+   * The decompressors must be closed to release their resources, but not the given stream.
+   */
+  private static InputStream shielded(InputStream in) {
+    return new BufferedInputStream(CloseShieldInputStream.wrap(in));
+  }
+
+  private static void extractTar(InputStream decompressed, Path targetDir, Predicate<TarArchiveEntry> filter) throws IOException {
+    var targetDirNormalizedPath = targetDir.normalize();
+    try (TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(decompressed)) {
+      TarArchiveEntry tarEntry;
+      while ((tarEntry = tarArchiveInputStream.getNextEntry()) != null) {
+        if (!tarArchiveInputStream.canReadEntryData(tarEntry) || !filter.test(tarEntry)) {
           continue;
         }
-        var entry = targetDir.resolve(targzEntry.getName());
-        if (targzEntry.isDirectory()) {
+        var entry = targetDir.resolve(tarEntry.getName());
+        // archives extracted while they are downloaded are not verified yet
+        verifyInsideTargetDirectory(tarEntry, entry, targetDirNormalizedPath);
+        if (tarEntry.isDirectory()) {
           Files.createDirectories(entry);
         } else {
           if (!Files.isDirectory(entry.getParent())) {
             Files.createDirectories(entry.getParent());
           }
-          Files.copy(tarArchiveInputStream, entry, StandardCopyOption.REPLACE_EXISTING);
-          int mode = targzEntry.getMode();
+          write(tarArchiveInputStream, tarEntry.getSize(), entry);
+          int mode = tarEntry.getMode();
           if (mode != 0 && !IS_OS_WINDOWS) {
             Set<PosixFilePermission> permissions = fromFileMode(mode);
             Files.setPosixFilePermissions(entry, permissions);
@@ -150,7 +356,73 @@ public final class CompressionUtils {
     }
   }
 
-  static Set<PosixFilePermission> fromFileMode(final int fileMode) {
+  /**
+   * Size of the content of an archive, read from the central directory of a zip or jar file, from the trailer of a gzip file, from
+   * the index of a xz file or from the frame header of a zstd file, without extracting it.
+   *
+   * @return -1 if unknown
+   */
+  public static long uncompressedSize(Path archive) throws IOException {
+    var filename = archive.getFileName().toString();
+    if (filename.endsWith(".zip") || filename.endsWith(".jar")) {
+      long size = 0;
+      try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          long entrySize = entries.nextElement().getSize();
+          if (entrySize < 0) {
+            return -1;
+          }
+          size += entrySize;
+        }
+      }
+      return size;
+    }
+    if (filename.endsWith(".gz")) {
+      // ISIZE: size of the uncompressed data modulo 2^32, little endian
+      try (var channel = FileChannel.open(archive)) {
+        var trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.size() < GZIP_MIN_SIZE || channel.read(trailer, channel.size() - 4) != 4) {
+          return -1;
+        }
+        return Integer.toUnsignedLong(trailer.getInt(0));
+      }
+    }
+    if (filename.endsWith(".xz")) {
+      // read from the index at the end of the file
+      try (var in = new SeekableXZInputStream(new SeekableFileInputStream(archive.toFile()))) {
+        return in.length();
+      }
+    }
+    if (filename.endsWith(".zst")) {
+      // optional frame content size, known when the archive was compressed from a file
+      var header = new byte[ZSTD_MAX_FRAME_HEADER_SIZE];
+      int read;
+      try (InputStream in = Files.newInputStream(archive)) {
+        read = IOUtils.read(in, header);
+      }
+      try {
+        long size = ZstdDecompressor.getDecompressedSize(header, 0, read);
+        return size >= 0 ? size : -1;
+      } catch (RuntimeException e) {
+        // not a valid frame header
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  public static int toFileMode(Set<PosixFilePermission> permissions) {
+    int mode = 0;
+    for (int i = 0; i < POSIX_PERMISSIONS.size(); i++) {
+      if (permissions.contains(POSIX_PERMISSIONS.get(i))) {
+        mode |= 1 << i;
+      }
+    }
+    return mode;
+  }
+
+  public static Set<PosixFilePermission> fromFileMode(final int fileMode) {
     if ((fileMode & MAX_MODE) != fileMode) {
       throw new IllegalStateException(
         "Invalid file mode '" + Integer.toOctalString(fileMode) + "'. File mode must be between 0 and " + MAX_MODE + " (" + Integer.toOctalString(MAX_MODE) + " in octal)");
@@ -20,11 +20,16 @@
 package org.sonarsource.scanner.lib;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -33,17 +38,22 @@ import org.sonarsource.scanner.lib.internal.InternalProperties;
 import org.sonarsource.scanner.lib.internal.IsolatedLauncherFactory;
 import org.sonarsource.scanner.lib.internal.ScannerEngineLauncher;
 import org.sonarsource.scanner.lib.internal.ScannerEngineLauncherFactory;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
 import org.sonarsource.scanner.lib.internal.cache.FileCache;
 import org.sonarsource.scanner.lib.internal.http.ServerConnection;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.sonarsource.scanner.lib.ScannerEngineBootstrapper.SQ_VERSION_NEW_BOOTSTRAPPING;
 
@@ -96,6 +106,7 @@ class ScannerEngineBootstrapperTest {
       verify(scannerEngineLauncherFactory).createLauncher(eq(serverConnection), any(FileCache.class), anyMap());
       assertThat(scannerEngineFacade.isSonarCloud()).isFalse();
       assertThat(scannerEngineFacade.getServerVersion()).isEqualTo(SQ_VERSION_NEW_BOOTSTRAPPING);
+      assertThat(scannerEngineFacade.getCacheStatistics()).hasValueSatisfying(statistics -> assertThat(statistics.getMisses()).isZero());
     }
   }
 
@@ -125,6 +136,31 @@ class ScannerEngineBootstrapperTest {
       scannerEngine.analyze(Map.of("sonar.projectKey", "foo"));
 
       assertThat(readDumpedProps().getProperty("sonar.projectKey")).isEqualTo("foo");
+      assertThat(scannerEngine.getCacheStatistics()).isEmpty();
+    }
+  }
+
+  @Test
+  void should_close_user_cache_if_launcher_creation_fails(@TempDir Path sonarUserHome) throws IOException {
+    var hash = DigestUtils.sha256Hex("engine");
+    when(serverConnection.callRestApi("/analysis/version")).thenReturn(SQ_VERSION_NEW_BOOTSTRAPPING);
+    when(scannerEngineLauncherFactory.createLauncher(eq(serverConnection), any(FileCache.class), anyMap())).thenAnswer(invocation -> {
+      FileCache fileCache = invocation.getArgument(1);
+      fileCache.getOrDownload("engine.jar", hash, "SHA-256", (filename, toFile) -> Files.writeString(toFile, "engine"));
+      throw new IllegalStateException("No JRE");
+    });
+
+    assertThatThrownBy(() -> underTest
+      .setBootstrapProperty(ScannerProperties.HOST_URL, "http://localhost")
+      .setBootstrapProperty(ScannerProperties.SONAR_USER_HOME, sonarUserHome.toString())
+      .bootstrap())
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("No JRE");
+
+    // the lease taken on the engine is released, otherwise the lock would overlap with the one of this JVM
+    var lockFile = sonarUserHome.resolve("cache/_leases").resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + ".lock");
+    try (var channel = FileChannel.open(lockFile, StandardOpenOption.WRITE); var lock = channel.tryLock()) {
+      assertThat(lock).isNotNull();
     }
   }
 
@@ -231,4 +267,78 @@ class ScannerEngineBootstrapperTest {
       assertThat(scannerEngine.getBootstrapProperties()).containsEntry("sonar.scanner.arch", "some-arch");
     }
   }
+
+  @Test
+  void should_prefetch_jres_and_scanner_engine() throws IOException {
+    var engine = Files.createDirectories(dumpToFolder.resolve("ENGINE")).resolve("scanner-engine.jar");
+    Files.writeString(engine, "engine");
+    var jre = Files.createDirectories(dumpToFolder.resolve("JRE")).resolve("jre.zip");
+    Files.writeString(jre, "jre");
+    when(scannerEngineLauncherFactory.prefetchJre(eq(serverConnection), any(FileCache.class), eq("linux"), eq("x64")))
+      .thenReturn(Optional.of(new CachedFile(jre, false)));
+    when(scannerEngineLauncherFactory.prefetchJre(eq(serverConnection), any(FileCache.class), eq("windows"), eq("x64")))
+      .thenReturn(Optional.empty());
+    when(scannerEngineLauncherFactory.prefetchScannerEngine(eq(serverConnection), any(FileCache.class)))
+      .thenReturn(new CachedFile(engine, true));
+
+    var artifacts = underTest.setBootstrapProperty(ScannerProperties.SONAR_USER_HOME, dumpToFolder.toString())
+      .prefetch("linux/x64", "windows/x64");
+
+    assertThat(artifacts)
+      .extracting(PrefetchedArtifact::getName, PrefetchedArtifact::getHash, PrefetchedArtifact::isCacheHit, PrefetchedArtifact::getBytesFetched)
+      .containsExactly(
+        tuple("JRE linux/x64", "JRE", false, 3L),
+        tuple("scanner engine", "ENGINE", true, 0L));
+    verify(scannerEngineLauncherFactory, never()).createLauncher(any(ServerConnection.class), any(FileCache.class), anyMap());
+  }
+
+  @Test
+  void should_prefetch_jre_of_current_platform_by_default() {
+    when(scannerEngineLauncherFactory.prefetchScannerEngine(eq(serverConnection), any(FileCache.class)))
+      .thenReturn(new CachedFile(dumpToFolder, true));
+
+    underTest.setBootstrapProperty(ScannerProperties.SONAR_USER_HOME, dumpToFolder.toString())
+      .setBootstrapProperty(ScannerProperties.SCANNER_OS, "some-os")
+      .setBootstrapProperty(ScannerProperties.SCANNER_ARCH, "some-arch")
+      .prefetch();
+
+    verify(scannerEngineLauncherFactory).prefetchJre(eq(serverConnection), any(FileCache.class), eq("some-os"), eq("some-arch"));
+  }
+
+  @Test
+  void should_not_prefetch_with_sonarqube_10_5() throws IOException {
+    when(serverConnection.callRestApi("/analysis/version")).thenReturn("10.5");
+
+    var artifacts = underTest.setBootstrapProperty(ScannerProperties.HOST_URL, "http://localhost").prefetch();
+
+    assertThat(artifacts).isEmpty();
+    verifyNoInteractions(scannerEngineLauncherFactory);
+  }
+
+  @Test
+  void should_export_and_import_cache_bundle(@TempDir Path connectedHome, @TempDir Path airGappedHome) {
+    var hash = DigestUtils.sha256Hex("engine");
+    try (var fileCache = FileCache.create(connectedHome)) {
+      fileCache.getOrDownload("scanner-engine.jar", hash, "SHA-256", (filename, toFile) -> Files.writeString(toFile, "engine"));
+    }
+    var bundleFile = connectedHome.resolve("bundle.tar");
+
+    underTest.setBootstrapProperty(ScannerProperties.SONAR_USER_HOME, connectedHome.toString())
+      .exportCacheBundle(List.of(hash), bundleFile);
+    var installed = underTest.setBootstrapProperty(ScannerProperties.SONAR_USER_HOME, airGappedHome.toString())
+      .importCacheBundle(bundleFile);
+
+    assertThat(installed).isOne();
+    try (var fileCache = FileCache.create(airGappedHome)) {
+      assertThat(fileCache.get("scanner-engine.jar", hash)).hasContent("engine");
+    }
+    verifyNoInteractions(serverConnection);
+  }
+
+  @Test
+  void should_fail_to_prefetch_invalid_platform() {
+    assertThatThrownBy(() -> underTest.prefetch("linux"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid platform 'linux', expected <os>/<arch>");
+  }
 }
@@ -0,0 +1,100 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class CacheJanitorTest {
+
+  @TempDir
+  private Path cacheDir;
+
+  private final TempCleaning tempCleaning = mock(TempCleaning.class);
+  private CacheJanitor underTest;
+
+  @BeforeEach
+  void setUp() {
+    underTest = new CacheJanitor(cacheDir, tempCleaning);
+  }
+
+  @Test
+  void run_at_most_once_per_interval() throws IOException {
+    assertThat(underTest.claimRun()).isTrue();
+    assertThat(underTest.claimRun()).isFalse();
+
+    Files.writeString(cacheDir.resolve(CacheJanitor.MARKER_FILE), Long.toString(System.currentTimeMillis() - CacheJanitor.INTERVAL_MILLIS - 1));
+    assertThat(underTest.claimRun()).isTrue();
+  }
+
+  @Test
+  void run_if_marker_is_unreadable() throws IOException {
+    Files.writeString(cacheDir.resolve(CacheJanitor.MARKER_FILE), "garbage");
+
+    assertThat(underTest.claimRun()).isTrue();
+  }
+
+  @Test
+  void delete_old_orphans() throws IOException {
+    var oldTempFile = createOld(cacheDir.resolve("_tmp/fileCache123.tmp"));
+    var youngTempFile = Files.createFile(cacheDir.resolve("_tmp/fileCache456.tmp"));
+    var oldExtractionDir = createOld(cacheDir.resolve("ABCDE/jre789/bin/java")).getParent().getParent();
+    setOld(oldExtractionDir);
+    var extractedDir = setOld(Files.createDirectories(cacheDir.resolve("ABCDE/jre.zip_unzip")));
+    var oldLock = createOld(cacheDir.resolve("ABCDE/jre.zip_unzip.lock"));
+    var heldLock = createOld(cacheDir.resolve("ABCDE/jre.zip.download.lock"));
+    var archive = createOld(cacheDir.resolve("ABCDE/jre.zip"));
+
+    try (var channel = FileChannel.open(heldLock, StandardOpenOption.WRITE); var lock = channel.lock()) {
+      underTest.clean();
+    }
+
+    assertThat(oldTempFile).doesNotExist();
+    assertThat(youngTempFile).exists();
+    assertThat(oldExtractionDir).doesNotExist();
+    assertThat(extractedDir).exists();
+    assertThat(oldLock).doesNotExist();
+    assertThat(heldLock).exists();
+    assertThat(archive).exists();
+    verify(tempCleaning).clean();
+  }
+
+  private static Path createOld(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.createFile(file);
+    return setOld(file);
+  }
+
+  private static Path setOld(Path path) throws IOException {
+    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 2 * CacheJanitor.MAX_AGE_MILLIS));
+    return path;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sonarsource.scanner.lib.ScannerProperties;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ClassDataSharingTest {
+
+  @TempDir
+  private Path temp;
+
+  private Path javaHome;
+  private Path javaExecutable;
+  private CachedFile scannerEngine;
+  private final FileCache fileCache = mock(FileCache.class);
+  private final Map<String, String> properties = new HashMap<>();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    javaHome = temp.resolve("jre");
+    javaExecutable = Files.writeString(Files.createDirectories(javaHome.resolve("bin")).resolve("java"), "java");
+    Files.writeString(javaHome.resolve("release"), "IMPLEMENTOR=\"Eclipse Adoptium\"\nJAVA_VERSION=\"17.0.9\"\n");
+    Files.writeString(Files.createDirectories(javaHome.resolve("lib/server")).resolve("classes.jsa"), "base");
+    var jar = Files.writeString(Files.createDirectories(temp.resolve("cache/AB/CD/ABCDE")).resolve("scanner-engine.jar"), "jar");
+    scannerEngine = new CachedFile(jar, true);
+    properties.put(ScannerProperties.SCANNER_CLASS_DATA_SHARING, "true");
+  }
+
+  @Test
+  void create_archive_on_first_run_and_use_it_on_next_runs() throws IOException {
+    var firstRun = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    var newArchive = dump(firstRun);
+    firstRun.afterRun(true);
+
+    assertThat(newArchive).doesNotExist();
+    assertThat(archives()).hasSize(1);
+    verify(fileCache).recordUsage(scannerEngine.getPathInCache());
+
+    var nextRun = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    assertThat(nextRun.getJvmArgs()).containsExactly("-XX:SharedArchiveFile=" + archives().get(0), "-Xlog:cds*=off");
+    nextRun.afterRun(true);
+    assertThat(archives()).hasSize(1);
+  }
+
+  @Test
+  void discard_archive_of_failed_run() throws IOException {
+    var classDataSharing = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    var newArchive = dump(classDataSharing);
+    classDataSharing.afterRun(false);
+
+    assertThat(newArchive).doesNotExist();
+    assertThat(archives()).isEmpty();
+    verify(fileCache, never()).recordUsage(scannerEngine.getPathInCache());
+  }
+
+  @Test
+  void ignore_run_that_did_not_dump_archive() throws IOException {
+    var classDataSharing = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    classDataSharing.afterRun(true);
+
+    assertThat(archives()).isEmpty();
+  }
+
+  @Test
+  void replace_archive_when_scanner_engine_changes() throws IOException {
+    var firstRun = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    dump(firstRun);
+    firstRun.afterRun(true);
+    var firstArchive = archives().get(0);
+
+    Files.setLastModifiedTime(scannerEngine.getPathInCache(), FileTime.fromMillis(1000L));
+    var nextRun = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    assertThat(nextRun.getJvmArgs().get(0)).startsWith("-XX:ArchiveClassesAtExit=");
+    dump(nextRun);
+    nextRun.afterRun(true);
+
+    assertThat(archives()).hasSize(1).doesNotContain(firstArchive);
+  }
+
+  @Test
+  void keep_archives_of_other_jres() throws IOException {
+    var firstRun = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    dump(firstRun);
+    firstRun.afterRun(true);
+
+    Files.setLastModifiedTime(javaExecutable, FileTime.fromMillis(1000L));
+    var otherJre = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    dump(otherJre);
+    otherJre.afterRun(true);
+
+    assertThat(archives()).hasSize(2);
+  }
+
+  @Test
+  void store_archive_of_read_only_cache_in_writable_cache() throws IOException {
+    var writableDir = Files.createDirectories(temp.resolve("writable/AB/CD/ABCDE"));
+    when(fileCache.isReadOnly(scannerEngine.getPathInCache())).thenReturn(true);
+    when(fileCache.getWritableDir(scannerEngine.getPathInCache())).thenReturn(writableDir);
+
+    var classDataSharing = ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties);
+    dump(classDataSharing);
+    classDataSharing.afterRun(true);
+
+    assertThat(writableDir.resolve("scanner-engine.jar" + ClassDataSharing.ARCHIVES_DIR_SUFFIX)).isNotEmptyDirectory();
+  }
+
+  @Test
+  void disabled_by_default() {
+    properties.remove(ScannerProperties.SCANNER_CLASS_DATA_SHARING);
+
+    assertThat(ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties)).isNull();
+
+    properties.put(ScannerProperties.SCANNER_CLASS_DATA_SHARING, "false");
+
+    assertThat(ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties)).isNull();
+  }
+
+  @Test
+  void disabled_when_configured_by_java_options() {
+    properties.put(ScannerProperties.SCANNER_JAVA_OPTS, "-Xmx1g -Xshare:off");
+
+    assertThat(ClassDataSharing.create(fileCache, javaExecutable, scannerEngine, properties)).isNull();
+  }
+
+  @Test
+  void disabled_for_java_found_in_path() {
+    assertThat(ClassDataSharing.create(fileCache, Paths.get("java"), scannerEngine, properties)).isNull();
+    assertThat(ClassDataSharing.create(fileCache, null, scannerEngine, properties)).isNull();
+  }
+
+  @Test
+  void supported_since_java_17_with_default_archive() throws IOException {
+    assertThat(ClassDataSharing.isSupported(javaExecutable)).isTrue();
+
+    Files.writeString(javaHome.resolve("release"), "JAVA_VERSION=\"21\"\n");
+    assertThat(ClassDataSharing.isSupported(javaExecutable)).isTrue();
+
+    Files.writeString(javaHome.resolve("release"), "JAVA_VERSION=\"11.0.21\"\n");
+    assertThat(ClassDataSharing.isSupported(javaExecutable)).isFalse();
+
+    Files.writeString(javaHome.resolve("release"), "JAVA_VERSION=\"1.8.0_392\"\n");
+    assertThat(ClassDataSharing.isSupported(javaExecutable)).isFalse();
+
+    Files.writeString(javaHome.resolve("release"), "JAVA_VERSION=\"17.0.9\"\n");
+    Files.delete(javaHome.resolve("lib/server/classes.jsa"));
+    assertThat(ClassDataSharing.isSupported(javaExecutable)).isFalse();
+
+    Files.delete(javaHome.resolve("release"));
+    assertThat(ClassDataSharing.isSupported(javaExecutable)).isFalse();
+  }
+
+  /**
+   * Do what the JVM does on exit with {@code -XX:ArchiveClassesAtExit}.
+   */
+  private static Path dump(ClassDataSharing classDataSharing) throws IOException {
+    var args = classDataSharing.getJvmArgs();
+    assertThat(args.get(0)).startsWith("-XX:ArchiveClassesAtExit=");
+    assertThat(args.get(1)).isEqualTo("-Xlog:cds*=off");
+    var newArchive = Paths.get(args.get(0).substring("-XX:ArchiveClassesAtExit=".length()));
+    Files.writeString(newArchive, "archive");
+    newArchive.toFile().setReadOnly();
+    return newArchive;
+  }
+
+  private List<Path> archives() throws IOException {
+    var archivesDir = scannerEngine.getPathInCache().resolveSibling("scanner-engine.jar" + ClassDataSharing.ARCHIVES_DIR_SUFFIX);
+    try (var stream = Files.list(archivesDir)) {
+      return stream.sorted().collect(Collectors.toList());
+    }
+  }
+}
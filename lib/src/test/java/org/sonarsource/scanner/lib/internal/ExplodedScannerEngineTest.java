@@ -0,0 +1,162 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.event.Level;
+import org.sonarsource.scanner.lib.ScannerProperties;
+import org.sonarsource.scanner.lib.internal.cache.CachedFile;
+import org.sonarsource.scanner.lib.internal.cache.FileCache;
+import testutils.LogTester;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class ExplodedScannerEngineTest {
+
+  @RegisterExtension
+  LogTester logTester = new LogTester();
+
+  @TempDir
+  private Path temp;
+
+  private Path jar;
+  private final FileCache fileCache = mock(FileCache.class);
+  private final Map<String, String> properties = new HashMap<>();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    jar = Files.createDirectories(temp.resolve("ABCDE")).resolve("scanner-engine.jar");
+    properties.put(ScannerProperties.SCANNER_EXPLODED_ENGINE, "true");
+  }
+
+  @Test
+  void launch_main_class_from_expanded_jar() throws IOException {
+    writeJar(attributes -> attributes.put(Attributes.Name.MAIN_CLASS, "org.foo.Main"));
+
+    var explodedScannerEngine = ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    });
+
+    var classpath = temp.resolve("ABCDE/scanner-engine.jar_unzip");
+    assertThat(explodedScannerEngine.getLaunchArgs()).containsExactly("-cp", classpath.toString(), "org.foo.Main");
+    assertThat(classpath.resolve("org/foo/Main.class")).hasContent("class");
+    verify(fileCache).ensureFreeSpace(eq(jar.getParent()), longThat(size -> size > 0));
+    verify(fileCache).recordUsage(jar);
+  }
+
+  @Test
+  void repair_damaged_classes() throws IOException {
+    writeJar(attributes -> attributes.put(Attributes.Name.MAIN_CLASS, "org.foo.Main"));
+    ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    });
+    var mainClass = temp.resolve("ABCDE/scanner-engine.jar_unzip/org/foo/Main.class");
+    Files.writeString(mainClass, "damaged");
+
+    ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    });
+
+    assertThat(mainClass).hasContent("class");
+  }
+
+  @Test
+  void translate_module_options_of_manifest() throws IOException {
+    writeJar(attributes -> {
+      attributes.put(Attributes.Name.MAIN_CLASS, "org.foo.Main");
+      attributes.putValue("Add-Opens", "java.base/java.lang java.base/java.util");
+      attributes.putValue("Add-Exports", "jdk.compiler/com.sun.tools.javac.api");
+    });
+
+    var explodedScannerEngine = ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    });
+
+    assertThat(explodedScannerEngine.getLaunchArgs()).startsWith(
+      "--add-opens=java.base/java.lang=ALL-UNNAMED",
+      "--add-opens=java.base/java.util=ALL-UNNAMED",
+      "--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED",
+      "-cp");
+  }
+
+  @Test
+  void launch_from_jar_when_manifest_requires_it() throws IOException {
+    writeJar(attributes -> {
+      attributes.put(Attributes.Name.MAIN_CLASS, "org.foo.Main");
+      attributes.putValue("Multi-Release", "true");
+    });
+
+    assertThat(ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    })).isNull();
+  }
+
+  @Test
+  void launch_from_jar_without_main_class() throws IOException {
+    writeJar(attributes -> {
+    });
+
+    assertThat(ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    })).isNull();
+  }
+
+  @Test
+  void launch_from_jar_when_it_cannot_be_expanded() throws IOException {
+    Files.writeString(jar, "not a jar");
+
+    assertThat(ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    })).isNull();
+    assertThat(logTester.logs(Level.WARN)).contains("Failed to expand the scanner engine, it is launched from its jar");
+  }
+
+  @Test
+  void disabled_by_default() throws IOException {
+    writeJar(attributes -> attributes.put(Attributes.Name.MAIN_CLASS, "org.foo.Main"));
+    properties.clear();
+
+    assertThat(ExplodedScannerEngine.create(fileCache, new CachedFile(jar, true), properties, () -> {
+    })).isNull();
+    assertThat(temp.resolve("ABCDE/scanner-engine.jar_unzip")).doesNotExist();
+  }
+
+  private void writeJar(Consumer<Attributes> manifestAttributes) throws IOException {
+    var manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifestAttributes.accept(manifest.getMainAttributes());
+    try (var out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+      out.putNextEntry(new ZipEntry("org/foo/Main.class"));
+      out.write("class".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+  }
+}
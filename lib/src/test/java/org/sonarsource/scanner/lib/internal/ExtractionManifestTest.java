@@ -0,0 +1,103 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ExtractionManifestTest {
+
+  @TempDir
+  private Path temp;
+
+  private Path dir;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    dir = temp.resolve("jre.zip_unzip");
+    Files.createDirectories(dir.resolve("bin"));
+    Files.writeString(dir.resolve("bin/java"), "java");
+    Files.writeString(dir.resolve("release"), "21");
+  }
+
+  @Test
+  void no_damaged_files_after_extraction() throws IOException {
+    var manifestFile = ExtractionManifest.manifestFile(dir);
+    ExtractionManifest.of(dir).write(manifestFile);
+
+    assertThat(manifestFile).hasFileName("jre.zip_unzip.manifest");
+    var manifest = ExtractionManifest.read(manifestFile).get();
+    assertThat(manifest.findDamagedFiles(dir)).isEmpty();
+    assertThat(manifest.isStale()).isFalse();
+    assertThat(manifest.getTotalSize()).isEqualTo(6L);
+  }
+
+  @Test
+  void find_missing_and_modified_files() throws IOException {
+    var manifest = ExtractionManifest.of(dir);
+    Files.delete(dir.resolve("bin/java"));
+    Files.writeString(dir.resolve("release"), "17");
+    Files.setLastModifiedTime(dir.resolve("release"), FileTime.fromMillis(1000L));
+
+    assertThat(manifest.findDamagedFiles(dir)).containsExactly("bin/java", "release");
+
+    Files.writeString(dir.resolve("bin/java"), "java");
+    Files.writeString(dir.resolve("release"), "21");
+    manifest.update(dir, List.of("bin/java", "release"));
+    assertThat(manifest.findDamagedFiles(dir)).isEmpty();
+    assertThat(manifest.isStale()).isTrue();
+  }
+
+  @Test
+  void touched_files_with_same_content_are_not_damaged() throws IOException {
+    var manifest = ExtractionManifest.of(dir);
+    Files.setLastModifiedTime(dir.resolve("release"), FileTime.fromMillis(1000L));
+
+    assertThat(manifest.findDamagedFiles(dir)).isEmpty();
+    assertThat(manifest.isStale()).isTrue();
+  }
+
+  @Test
+  void use_known_checksums() throws IOException {
+    var manifest = ExtractionManifest.of(dir, Map.of(dir.resolve("release"), 42L));
+    Files.setLastModifiedTime(dir.resolve("release"), FileTime.fromMillis(1000L));
+    Files.setLastModifiedTime(dir.resolve("bin/java"), FileTime.fromMillis(1000L));
+
+    assertThat(manifest.findDamagedFiles(dir)).containsExactly("release");
+  }
+
+  @Test
+  void ignore_unreadable_manifest() throws IOException {
+    var manifestFile = ExtractionManifest.manifestFile(dir);
+    assertThat(ExtractionManifest.read(manifestFile)).isEmpty();
+
+    Files.writeString(manifestFile, "{not json");
+    assertThat(ExtractionManifest.read(manifestFile)).isEmpty();
+  }
+}
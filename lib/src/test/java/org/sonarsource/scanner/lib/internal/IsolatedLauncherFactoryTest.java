@@ -33,13 +33,11 @@ import static org.mockito.Mockito.mock;
 class IsolatedLauncherFactoryTest {
   IsolatedLauncherFactory factory;
   Properties props;
-  TempCleaning tempCleaning;
   LegacyScannerEngineDownloader legacyScannerEngineDownloader;
 
   @BeforeEach
   public void setUp() {
-    tempCleaning = mock(TempCleaning.class);
-    factory = new IsolatedLauncherFactory(FakeIsolatedLauncher.class.getName(), tempCleaning);
+    factory = new IsolatedLauncherFactory(FakeIsolatedLauncher.class.getName());
     props = new Properties();
     legacyScannerEngineDownloader = mock(LegacyScannerEngineDownloader.class);
   }
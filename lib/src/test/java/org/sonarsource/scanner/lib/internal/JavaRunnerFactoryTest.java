@@ -19,31 +19,56 @@
  */
 package org.sonarsource.scanner.lib.internal;
 
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
 import org.junit.jupiter.api.io.TempDir;
+import org.sonarsource.scanner.lib.ScannerProperties;
 import org.sonarsource.scanner.lib.System2;
 import org.sonarsource.scanner.lib.internal.cache.CachedFile;
 import org.sonarsource.scanner.lib.internal.cache.FileCache;
+import org.sonarsource.scanner.lib.internal.cache.InsufficientDiskSpaceException;
 import org.sonarsource.scanner.lib.internal.http.ServerConnection;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static java.util.Objects.requireNonNull;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.matches;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.sonarsource.scanner.lib.ScannerProperties.JAVA_EXECUTABLE_PATH;
 import static org.sonarsource.scanner.lib.ScannerProperties.SCANNER_ARCH;
@@ -81,6 +106,157 @@ class JavaRunnerFactoryTest {
 
     assertThat(runner.getJavaExecutable()).isNotNull();
     assertThat(runner.getJavaExecutable()).exists();
+    verify(fileCache).recordExtraction(anyLong(), anyLong());
+  }
+
+  @Test
+  void createRunner_jreProvisioning_extracts_once_for_concurrent_threads() throws Exception {
+    var jre = temp.resolve("fake-jre.zip");
+    FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+
+    when(serverConnection.callRestApi(matches(API_PATH_JRE + ".*"))).thenReturn(
+      IOUtils.toString(requireNonNull(getClass().getResourceAsStream("createRunner_jreProvisioning.json")), StandardCharsets.UTF_8));
+    when(fileCache.getOrDownload(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenReturn(new CachedFile(jre, false));
+
+    int threads = 16;
+    var executor = Executors.newFixedThreadPool(threads);
+    try {
+      var start = new CountDownLatch(1);
+      List<Future<Path>> javaExecutables = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        javaExecutables.add(executor.submit(() -> {
+          start.await();
+          return underTest.createRunner(serverConnection, fileCache, new HashMap<>()).getJavaExecutable();
+        }));
+      }
+      start.countDown();
+      for (Future<Path> javaExecutable : javaExecutables) {
+        assertThat(javaExecutable.get(30, TimeUnit.SECONDS)).isEqualTo(temp.resolve("fake-jre.zip_unzip/bin/java")).exists();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(fileCache).recordExtraction(anyLong(), anyLong());
+    try (var files = Files.list(temp)) {
+      assertThat(files.map(p -> p.getFileName().toString())).containsOnly("fake-jre.zip", "fake-jre.zip_unzip", "fake-jre.zip_unzip.manifest");
+    }
+  }
+
+  @Test
+  void createRunner_jreProvisioning_uses_directory_extracted_concurrently_by_another_process() throws IOException {
+    var jre = temp.resolve("fake-jre.zip");
+    FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+    var destDir = temp.resolve("fake-jre.zip_unzip");
+
+    when(serverConnection.callRestApi(matches(API_PATH_JRE + ".*"))).thenReturn(
+      IOUtils.toString(requireNonNull(getClass().getResourceAsStream("createRunner_jreProvisioning.json")), StandardCharsets.UTF_8));
+    when(fileCache.getOrDownload(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenReturn(new CachedFile(jre, false));
+    // the other process renames its directory after this one is extracted, but before it is renamed
+    doAnswer(invocation -> {
+      FileUtils.copyDirectory(invocation.<Path>getArgument(0).toFile(), destDir.toFile());
+      return Map.of();
+    }).when(fileCache).deduplicate(any());
+
+    JavaRunner runner = underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+
+    assertThat(runner.getJavaExecutable()).isEqualTo(destDir.resolve("bin/java")).exists();
+    verify(fileCache, never()).recordExtraction(anyLong(), anyLong());
+    try (var files = Files.list(temp)) {
+      assertThat(files.map(p -> p.getFileName().toString())).containsOnly("fake-jre.zip", "fake-jre.zip_unzip");
+    }
+  }
+
+  @Test
+  void createRunner_jreProvisioning_repairs_damaged_files() throws IOException {
+    var jre = temp.resolve("fake-jre.zip");
+    FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+
+    when(serverConnection.callRestApi(matches(API_PATH_JRE + ".*"))).thenReturn(
+      IOUtils.toString(requireNonNull(getClass().getResourceAsStream("createRunner_jreProvisioning.json")), StandardCharsets.UTF_8));
+    when(fileCache.getOrDownload(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenReturn(new CachedFile(jre, true));
+
+    JavaRunner runner = underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+    var extractedDir = temp.resolve("fake-jre.zip_unzip");
+    assertThat(temp.resolve("fake-jre.zip_unzip.manifest")).exists();
+    var sample = extractedDir.resolve("sample.txt");
+    var originalSample = Files.readString(sample);
+
+    Files.delete(runner.getJavaExecutable());
+    Files.writeString(sample, "damaged");
+    underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+
+    assertThat(runner.getJavaExecutable()).exists();
+    assertThat(sample).hasContent(originalSample);
+  }
+
+  @Test
+  void createRunner_jreProvisioning_downloads_dropped_archive_again_to_repair() throws IOException {
+    var jre = temp.resolve("fake-jre.zip");
+    FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+
+    when(serverConnection.callRestApi(matches(API_PATH_JRE + ".*"))).thenReturn(
+      IOUtils.toString(requireNonNull(getClass().getResourceAsStream("createRunner_jreProvisioning.json")), StandardCharsets.UTF_8));
+    when(fileCache.getOrDownload(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenReturn(new CachedFile(jre, true));
+    when(fileCache.downloadAgain(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenAnswer(invocation -> {
+      FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+      return new CachedFile(jre, false);
+    });
+
+    JavaRunner runner = underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+    verify(fileCache).dropArchive(jre);
+    Files.delete(jre);
+
+    // not needed as long as the extracted files are fine, and not dropped again on a plain cache hit
+    underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+    verify(fileCache, never()).downloadAgain(any(), any(), any(), any());
+    verify(fileCache).dropArchive(jre);
+
+    Files.delete(runner.getJavaExecutable());
+    underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+
+    assertThat(runner.getJavaExecutable()).exists();
+    verify(fileCache).downloadAgain(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class));
+  }
+
+  @Test
+  void createRunner_jreProvisioning_extracts_read_only_archive_in_writable_cache() throws IOException {
+    var jre = temp.resolve("readonly/123456/fake-jre.zip");
+    Files.createDirectories(jre.getParent());
+    FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+    var writableDir = temp.resolve("cache/123456");
+    Files.createDirectories(writableDir);
+
+    when(serverConnection.callRestApi(matches(API_PATH_JRE + ".*"))).thenReturn(
+      IOUtils.toString(requireNonNull(getClass().getResourceAsStream("createRunner_jreProvisioning.json")), StandardCharsets.UTF_8));
+    when(fileCache.getOrDownload(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenReturn(new CachedFile(jre, true));
+    when(fileCache.isReadOnly(jre)).thenReturn(true);
+    when(fileCache.getWritableDir(jre)).thenReturn(writableDir);
+
+    JavaRunner runner = underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+    assertThat(runner.getJavaExecutable()).startsWith(writableDir.resolve("fake-jre.zip_unzip")).exists();
+    assertThat(jre.resolveSibling("fake-jre.zip_unzip")).doesNotExist();
+
+    // an extracted directory provided by the read-only cache is used in place
+    FileUtils.moveDirectory(writableDir.resolve("fake-jre.zip_unzip").toFile(), jre.resolveSibling("fake-jre.zip_unzip").toFile());
+    Files.move(writableDir.resolve("fake-jre.zip_unzip.manifest"), jre.resolveSibling("fake-jre.zip_unzip.manifest"));
+    runner = underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+    assertThat(runner.getJavaExecutable()).startsWith(jre.resolveSibling("fake-jre.zip_unzip")).exists();
+  }
+
+  @Test
+  void prefetchJre_extracts_without_running() throws IOException {
+    var jre = temp.resolve("fake-jre.zip");
+    FileUtils.copyFile(new File("src/test/resources/fake-jre.zip"), jre.toFile());
+
+    when(serverConnection.callRestApi(API_PATH_JRE + "?os=windows&arch=aarch64")).thenReturn(
+      IOUtils.toString(requireNonNull(getClass().getResourceAsStream("createRunner_jreProvisioning.json")), StandardCharsets.UTF_8));
+    when(fileCache.getOrDownload(eq("fake-jre.zip"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenReturn(new CachedFile(jre, false));
+
+    var archive = underTest.prefetchJre(serverConnection, fileCache, "windows", "aarch64");
+
+    assertThat(archive).hasValueSatisfying(a -> assertThat(a.getPathInCache()).isEqualTo(jre));
+    assertThat(temp.resolve("fake-jre.zip_unzip")).isDirectory();
+    verifyNoInteractions(processWrapperFactory);
   }
 
   @Test
@@ -151,7 +327,7 @@ class JavaRunnerFactoryTest {
     String filename = "jre.zip";
     var output = temp.resolve(filename);
     new JavaRunnerFactory.JreDownloader(serverConnection,
-      new JavaRunnerFactory.JreMetadata(filename, "123456", null, "uuid", "bin/java"))
+      new JavaRunnerFactory.JreMetadata(filename, "123456", null, "uuid", "bin/java"), fileCache)
       .download(filename, output);
     verify(serverConnection).downloadFromRestApi(API_PATH_JRE + "/uuid", output);
   }
@@ -161,8 +337,186 @@ class JavaRunnerFactoryTest {
     String filename = "jre.zip";
     var output = temp.resolve(filename);
     new JavaRunnerFactory.JreDownloader(serverConnection,
-      new JavaRunnerFactory.JreMetadata(filename, "123456", "https://localhost/jre.zip", "uuid", "bin/java"))
+      new JavaRunnerFactory.JreMetadata(filename, "123456", "https://localhost/jre.zip", "uuid", "bin/java"), fileCache)
       .download(filename, output);
     verify(serverConnection).downloadFromExternalUrl("https://localhost/jre.zip", output);
   }
+
+  @Test
+  void jreDownloader_download_withDigest() throws IOException, NoSuchAlgorithmException {
+    String filename = "jre.zip";
+    var output = temp.resolve(filename);
+    var digest = MessageDigest.getInstance("SHA-256");
+    new JavaRunnerFactory.JreDownloader(serverConnection,
+      new JavaRunnerFactory.JreMetadata(filename, "123456", null, "uuid", "bin/java"), fileCache)
+      .download(filename, output, digest);
+    verify(serverConnection).downloadFromRestApi(API_PATH_JRE + "/uuid", output, digest);
+  }
+
+  @Test
+  void jreDownloader_extracts_tar_gz_while_downloading() throws IOException, NoSuchAlgorithmException {
+    String filename = "jre.tar.gz";
+    var output = temp.resolve(filename);
+    var digest = MessageDigest.getInstance("SHA-256");
+    var archive = Files.readAllBytes(Paths.get("src/test/resources/archive.tar.gz"));
+    doAnswer(invocation -> {
+      Files.write(output, archive);
+      try (OutputStream tee = invocation.getArgument(3)) {
+        tee.write(archive);
+      }
+      return null;
+    }).when(serverConnection).downloadFromRestApi(eq(API_PATH_JRE + "/uuid"), eq(output), eq(digest), any(OutputStream.class));
+    var downloader = new JavaRunnerFactory.JreDownloader(serverConnection,
+      new JavaRunnerFactory.JreMetadata(filename, "123456", null, "uuid", "bin/java"), fileCache);
+
+    downloader.download(filename, output, digest);
+
+    var extracted = downloader.takeExtraction();
+    assertThat(extracted).isNotNull().hasParent(temp);
+    assertThat(extracted.resolve("dir/hello.properties")).exists();
+    assertThat(extracted.resolve("foo.txt")).exists();
+    assertThat(downloader.takeExtraction()).isNull();
+  }
+
+  @Test
+  void jreDownloader_stops_extraction_if_disk_is_short_of_space() throws IOException, NoSuchAlgorithmException {
+    String filename = "jre.tar.gz";
+    var output = temp.resolve(filename);
+    var digest = MessageDigest.getInstance("SHA-256");
+    var archive = Files.readAllBytes(Paths.get("src/test/resources/archive.tar.gz"));
+    doAnswer(invocation -> {
+      Files.write(output, archive);
+      try (OutputStream tee = invocation.getArgument(3)) {
+        tee.write(archive);
+      }
+      return null;
+    }).when(serverConnection).downloadFromRestApi(eq(API_PATH_JRE + "/uuid"), eq(output), eq(digest), any(OutputStream.class));
+    doThrow(new InsufficientDiskSpaceException(temp, 100L, 10L)).when(fileCache).ensureFreeSpace(any(Path.class), anyLong());
+    var downloader = new JavaRunnerFactory.JreDownloader(serverConnection,
+      new JavaRunnerFactory.JreMetadata(filename, "123456", null, "uuid", "bin/java"), fileCache);
+
+    downloader.download(filename, output, digest);
+
+    assertThat(output).hasBinaryContent(archive);
+    assertThat(downloader.takeExtraction()).isNull();
+  }
+
+  @Test
+  void jreDownloader_discards_extraction_of_truncated_tar_gz() throws IOException, NoSuchAlgorithmException {
+    String filename = "jre.tar.gz";
+    var output = temp.resolve(filename);
+    var digest = MessageDigest.getInstance("SHA-256");
+    var archive = Files.readAllBytes(Paths.get("src/test/resources/archive.tar.gz"));
+    doAnswer(invocation -> {
+      try (OutputStream tee = invocation.getArgument(3)) {
+        tee.write(archive, 0, archive.length / 2);
+      }
+      return null;
+    }).when(serverConnection).downloadFromExternalUrl(eq("https://localhost/jre.tar.gz"), eq(output), eq(digest), any(OutputStream.class));
+    var downloader = new JavaRunnerFactory.JreDownloader(serverConnection,
+      new JavaRunnerFactory.JreMetadata(filename, "123456", "https://localhost/jre.tar.gz", "uuid", "bin/java"), fileCache);
+
+    downloader.download(filename, output, digest);
+
+    assertThat(downloader.takeExtraction()).isNull();
+    try (var files = Files.list(temp)) {
+      assertThat(files).isEmpty();
+    }
+  }
+
+  @Test
+  void createRunner_jreProvisioning_moves_archive_extracted_while_downloading() throws IOException {
+    var cacheDir = temp.resolve("cache");
+    var jre = cacheDir.resolve("123456/fake-jre.tar.gz");
+    Files.createDirectories(jre.getParent());
+    Files.createDirectories(cacheDir.resolve("_tmp"));
+    var archive = Files.readAllBytes(Paths.get("src/test/resources/archive.tar.gz"));
+
+    when(serverConnection.callRestApi(matches(API_PATH_JRE + ".*"))).thenReturn(
+      "[{\"id\": \"uuid\", \"filename\": \"fake-jre.tar.gz\", \"sha256\": \"123456\", \"javaPath\": \"foo.txt\"}]");
+    doAnswer(invocation -> {
+      // the downloaded file is not extracted again, it would fail
+      Files.writeString(invocation.getArgument(1), "not a tar.gz");
+      try (OutputStream tee = invocation.getArgument(3)) {
+        tee.write(archive);
+      }
+      return null;
+    }).when(serverConnection).downloadFromRestApi(eq(API_PATH_JRE + "/uuid"), any(Path.class), any(), any(OutputStream.class));
+    when(fileCache.getOrDownload(eq("fake-jre.tar.gz"), eq("123456"), eq("SHA-256"), any(JavaRunnerFactory.JreDownloader.class))).thenAnswer(invocation -> {
+      FileCache.Downloader downloader = invocation.getArgument(3);
+      var tempFile = Files.createTempFile(cacheDir.resolve("_tmp"), "fileCache", null);
+      downloader.download("fake-jre.tar.gz", tempFile, MessageDigest.getInstance("SHA-256"));
+      Files.move(tempFile, jre);
+      return new CachedFile(jre, false);
+    });
+
+    JavaRunner runner = underTest.createRunner(serverConnection, fileCache, new HashMap<>());
+
+    assertThat(runner.getJavaExecutable()).isEqualTo(jre.resolveSibling("fake-jre.tar.gz_unzip/foo.txt")).exists();
+    assertThat(jre.resolveSibling("fake-jre.tar.gz_unzip.manifest")).exists();
+    try (var files = Files.list(cacheDir.resolve("_tmp"))) {
+      assertThat(files).isEmpty();
+    }
+  }
+
+  @Nested
+  class WithStandInServer {
+
+    @RegisterExtension
+    private final WireMockExtension server = WireMockExtension.newInstance()
+      .options(wireMockConfig().dynamicPort())
+      .build();
+
+    @Test
+    void prefetchJre_downloads_and_extracts_tar_zst() throws IOException {
+      var archive = Files.readAllBytes(Paths.get("src/test/resources/archive.tar.zst"));
+      server.stubFor(get(urlEqualTo(API_PATH_JRE + "?os=linux&arch=x64")).willReturn(aResponse().withBody(
+        "[{\"id\": \"uuid\", \"filename\": \"jre.tar.zst\", \"sha256\": \"" + DigestUtils.sha256Hex(archive) + "\", \"javaPath\": \"foo.txt\"}]")));
+      server.stubFor(get(urlEqualTo(API_PATH_JRE + "/uuid")).willReturn(aResponse().withBody(archive)));
+      var connection = new ServerConnection();
+      connection.init(Map.of(ScannerProperties.HOST_URL, server.baseUrl(), ScannerProperties.API_BASE_URL, server.baseUrl(),
+        InternalProperties.SCANNER_APP, "user", InternalProperties.SCANNER_APP_VERSION, "agent"), temp);
+
+      try (var cache = FileCache.create(temp)) {
+        var cachedFile = underTest.prefetchJre(connection, cache, "linux", "x64");
+
+        assertThat(cachedFile).hasValueSatisfying(f -> {
+          assertThat(f.isCacheHit()).isFalse();
+          assertThat(f.getPathInCache().resolveSibling("jre.tar.zst_unzip/dir/hello.properties")).exists();
+        });
+      }
+    }
+
+    @Test
+    void prefetchJre_downloads_archive_dropped_by_another_process_again_to_repair() throws IOException {
+      var archive = Files.readAllBytes(Paths.get("src/test/resources/archive.tar.zst"));
+      server.stubFor(get(urlEqualTo(API_PATH_JRE + "?os=linux&arch=x64")).willReturn(aResponse().withBody(
+        "[{\"id\": \"uuid\", \"filename\": \"jre.tar.zst\", \"sha256\": \"" + DigestUtils.sha256Hex(archive) + "\", \"javaPath\": \"foo.txt\"}]")));
+      server.stubFor(get(urlEqualTo(API_PATH_JRE + "/uuid")).willReturn(aResponse().withBody(archive)));
+      var connection = new ServerConnection();
+      connection.init(Map.of(ScannerProperties.HOST_URL, server.baseUrl(), ScannerProperties.API_BASE_URL, server.baseUrl(),
+        InternalProperties.SCANNER_APP, "user", InternalProperties.SCANNER_APP_VERSION, "agent"), temp);
+      var properties = Map.of(ScannerProperties.SCANNER_DROP_ARCHIVES, "true");
+
+      Path jre;
+      try (var otherProcess = FileCache.create(temp, properties)) {
+        jre = underTest.prefetchJre(connection, otherProcess, "linux", "x64").orElseThrow().getPathInCache();
+      }
+      assertThat(jre).doesNotExist();
+      var extractedFile = jre.resolveSibling("jre.tar.zst_unzip/dir/hello.properties");
+      var content = Files.readString(extractedFile);
+      Files.delete(extractedFile);
+
+      try (var cache = FileCache.create(temp, properties)) {
+        var cachedFile = underTest.prefetchJre(connection, cache, "linux", "x64");
+
+        assertThat(cachedFile).hasValueSatisfying(f -> assertThat(f.isCacheHit()).isTrue());
+      }
+      assertThat(extractedFile).hasContent(content);
+      server.verify(2, getRequestedFor(urlEqualTo(API_PATH_JRE + "/uuid")));
+      // dropped again once repaired
+      assertThat(jre).doesNotExist();
+      assertThat(jre.resolveSibling("jre.tar.zst.dropped")).exists();
+    }
+  }
 }
@@ -0,0 +1,122 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class JreSanityCheckTest {
+
+  @TempDir
+  private Path temp;
+
+  private Path cacheDir;
+  private Path javaExecutable;
+  private final JavaRunner javaRunner = mock(JavaRunner.class);
+
+  @BeforeEach
+  void setUp() throws IOException {
+    cacheDir = Files.createDirectories(temp.resolve("cache"));
+    javaExecutable = Files.writeString(Files.createDirectories(temp.resolve("jre/bin")).resolve("java"), "java");
+    when(javaRunner.getJavaExecutable()).thenReturn(javaExecutable);
+    when(javaRunner.execute(eq(List.of("--version")), any(), any())).thenReturn(true);
+  }
+
+  @Test
+  void check_only_once() {
+    new JreSanityCheck(cacheDir).run(javaRunner);
+    new JreSanityCheck(cacheDir).run(javaRunner);
+
+    verify(javaRunner).execute(eq(List.of("--version")), any(), any());
+    assertThat(cacheDir.resolve(JreSanityCheck.CHECKS_DIR).resolve(JreSanityCheck.key(javaExecutable))).exists();
+  }
+
+  @Test
+  void check_again_when_executable_changes() throws IOException {
+    new JreSanityCheck(cacheDir).run(javaRunner);
+    Files.setLastModifiedTime(javaExecutable, FileTime.fromMillis(1000L));
+    new JreSanityCheck(cacheDir).run(javaRunner);
+
+    verify(javaRunner, times(2)).execute(eq(List.of("--version")), any(), any());
+  }
+
+  @Test
+  void do_not_record_failed_check() {
+    when(javaRunner.execute(eq(List.of("--version")), any(), any())).thenReturn(false);
+
+    new JreSanityCheck(cacheDir).run(javaRunner);
+    new JreSanityCheck(cacheDir).run(javaRunner);
+
+    verify(javaRunner, times(2)).execute(eq(List.of("--version")), any(), any());
+  }
+
+  @Test
+  void always_check_executable_found_in_path() {
+    when(javaRunner.getJavaExecutable()).thenReturn(Paths.get("java"));
+
+    new JreSanityCheck(cacheDir).run(javaRunner);
+    new JreSanityCheck(cacheDir).run(javaRunner);
+
+    verify(javaRunner, times(2)).execute(eq(List.of("--version")), any(), any());
+    assertThat(cacheDir.resolve(JreSanityCheck.CHECKS_DIR)).doesNotExist();
+  }
+
+  @Test
+  void delete_records_of_changed_or_deleted_executables() throws IOException {
+    var otherJavaExecutable = Files.writeString(temp.resolve("java"), "other java");
+    var otherJavaRunner = mock(JavaRunner.class);
+    when(otherJavaRunner.getJavaExecutable()).thenReturn(otherJavaExecutable);
+    when(otherJavaRunner.execute(eq(List.of("--version")), any(), any())).thenReturn(true);
+    var changedJavaExecutable = Files.writeString(temp.resolve("java2"), "java");
+    var changedJavaRunner = mock(JavaRunner.class);
+    when(changedJavaRunner.getJavaExecutable()).thenReturn(changedJavaExecutable);
+    when(changedJavaRunner.execute(eq(List.of("--version")), any(), any())).thenReturn(true);
+    new JreSanityCheck(cacheDir).run(javaRunner);
+    new JreSanityCheck(cacheDir).run(otherJavaRunner);
+    new JreSanityCheck(cacheDir).run(changedJavaRunner);
+    var changedRecord = cacheDir.resolve(JreSanityCheck.CHECKS_DIR).resolve(JreSanityCheck.key(changedJavaExecutable));
+
+    Files.delete(otherJavaExecutable);
+    Files.setLastModifiedTime(changedJavaExecutable, FileTime.fromMillis(1000L));
+    JreSanityCheck.deleteStale(cacheDir);
+
+    try (var records = Files.list(cacheDir.resolve(JreSanityCheck.CHECKS_DIR))) {
+      assertThat(records).containsExactly(cacheDir.resolve(JreSanityCheck.CHECKS_DIR).resolve(JreSanityCheck.key(javaExecutable)));
+    }
+    assertThat(changedRecord).doesNotExist();
+    new JreSanityCheck(cacheDir).run(javaRunner);
+    verify(javaRunner).execute(eq(List.of("--version")), any(), any());
+  }
+}
@@ -48,6 +48,7 @@ class ScannerEngineLauncherFactoryTest {
   void createLauncher() throws IOException {
     when(serverConnection.callRestApi(API_PATH_ENGINE)).thenReturn("{\"filename\":\"scanner-engine.jar\",\"sha256\":\"123456\"}");
     when(javaRunnerFactory.createRunner(eq(serverConnection), eq(fileCache), anyMap())).thenReturn(mock(JavaRunner.class));
+    when(fileCache.getDir()).thenReturn(temp);
 
     ScannerEngineLauncherFactory factory = new ScannerEngineLauncherFactory(javaRunnerFactory);
     factory.createLauncher(serverConnection, fileCache, new HashMap<>());
@@ -36,6 +36,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class ScannerEngineLauncherTest {
 
@@ -64,6 +65,33 @@ class ScannerEngineLauncherTest {
       any());
   }
 
+  @Test
+  void execute_with_class_data_sharing() {
+    var scannerEngine = temp.resolve("scanner-engine.jar");
+    var classDataSharing = mock(ClassDataSharing.class);
+    when(classDataSharing.getJvmArgs()).thenReturn(List.of("-XX:SharedArchiveFile=engine.jsa"));
+    when(javaRunner.execute(any(), any(), any())).thenReturn(true);
+
+    ScannerEngineLauncher launcher = new ScannerEngineLauncher(javaRunner, new CachedFile(scannerEngine, true), classDataSharing, null);
+    launcher.execute(Map.of(ScannerProperties.SCANNER_JAVA_OPTS, "-Xmx4g"));
+
+    verify(javaRunner).execute(eq(List.of("-Xmx4g", "-XX:SharedArchiveFile=engine.jsa", "-jar", scannerEngine.toAbsolutePath().toString())),
+      any(), any());
+    verify(classDataSharing).afterRun(true);
+  }
+
+  @Test
+  void execute_exploded_scanner_engine() {
+    var scannerEngine = temp.resolve("scanner-engine.jar");
+    var explodedScannerEngine = mock(ExplodedScannerEngine.class);
+    when(explodedScannerEngine.getLaunchArgs()).thenReturn(List.of("-cp", "scanner-engine.jar_unzip", "org.foo.Main"));
+
+    ScannerEngineLauncher launcher = new ScannerEngineLauncher(javaRunner, new CachedFile(scannerEngine, true), null, explodedScannerEngine);
+    launcher.execute(Map.of(ScannerProperties.SCANNER_JAVA_OPTS, "-Xmx4g"));
+
+    verify(javaRunner).execute(eq(List.of("-Xmx4g", "-cp", "scanner-engine.jar_unzip", "org.foo.Main")), any(), any());
+  }
+
   @Test
   void replace_null_values_by_empty_in_json_and_ignore_null_key() {
     var scannerEngine = temp.resolve("scanner-engine.jar");
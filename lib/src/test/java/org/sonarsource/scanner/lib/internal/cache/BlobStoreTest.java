@@ -0,0 +1,102 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DisabledOnOs(OS.WINDOWS)
+class BlobStoreTest {
+
+  @TempDir
+  private Path cacheDir;
+
+  @Test
+  void link_identical_files() throws IOException {
+    var underTest = new BlobStore(cacheDir);
+    var jre17 = createTree("jre17", "java", "17");
+    var jre21 = createTree("jre21", "java", "21");
+
+    var deduplication = underTest.deduplicate(jre17);
+    assertThat(deduplication.getSaved()).isZero();
+    assertThat(deduplication.getStored()).isEqualTo(6L);
+    assertThat(deduplication.getChecksums()).containsOnlyKeys(jre17.resolve("bin/java"), jre17.resolve("release"));
+    deduplication = underTest.deduplicate(jre21);
+    assertThat(deduplication.getSaved()).isEqualTo(4L);
+    assertThat(deduplication.getStored()).isEqualTo(2L);
+
+    assertThat(Files.isSameFile(jre17.resolve("bin/java"), jre21.resolve("bin/java"))).isTrue();
+    assertThat(Files.isSameFile(jre17.resolve("release"), jre21.resolve("release"))).isFalse();
+    assertThat(jre21.resolve("release")).hasContent("21");
+    // already linked
+    assertThat(underTest.deduplicate(jre21).getSaved()).isZero();
+  }
+
+  @Test
+  void do_not_link_files_with_different_permissions() throws IOException {
+    var underTest = new BlobStore(cacheDir);
+    var jre17 = createTree("jre17", "java", "17");
+    var jre21 = createTree("jre21", "java", "21");
+    Files.setPosixFilePermissions(jre21.resolve("bin/java"), PosixFilePermissions.fromString("rwxr-xr-x"));
+
+    underTest.deduplicate(jre17);
+    underTest.deduplicate(jre21);
+
+    assertThat(Files.isSameFile(jre17.resolve("bin/java"), jre21.resolve("bin/java"))).isFalse();
+  }
+
+  @Test
+  void delete_unused_blobs() throws IOException {
+    var underTest = new BlobStore(cacheDir);
+    var jre17 = createTree("jre17", "java", "17");
+    var jre21 = createTree("jre21", "java", "21");
+    underTest.deduplicate(jre17);
+    underTest.deduplicate(jre21);
+    Files.delete(jre17.resolve("release"));
+    Files.delete(jre17.resolve("bin/java"));
+    long cutoff = System.currentTimeMillis() + 1000L;
+
+    underTest.deleteUnused(cutoff);
+
+    try (var blobs = Files.walk(cacheDir.resolve(BlobStore.BLOBS_DIR))) {
+      // the blobs of jre21
+      assertThat(blobs.filter(Files::isRegularFile)).hasSize(2);
+    }
+  }
+
+  private Path createTree(String name, String java, String release) throws IOException {
+    var dir = cacheDir.resolve(name);
+    Files.createDirectories(dir.resolve("bin"));
+    Files.writeString(dir.resolve("bin/java"), java);
+    Files.writeString(dir.resolve("release"), release);
+    Files.setPosixFilePermissions(dir.resolve("bin/java"), PosixFilePermissions.fromString("rwx------"));
+    Files.setLastModifiedTime(dir.resolve("bin/java"), FileTime.fromMillis(1000L));
+    return dir;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CacheBundleTest {
+
+  private static final String MD5 = "841a2d689ad86bd1611447453c22c6fc";
+
+  @TempDir
+  private Path temp;
+
+  @Test
+  void guess_hash_algorithm() {
+    assertThat(CacheBundle.hashAlgorithm(MD5)).isEqualTo("MD5");
+    assertThat(CacheBundle.hashAlgorithm("a".repeat(64))).isEqualTo("SHA-256");
+    assertThatThrownBy(() -> CacheBundle.hashAlgorithm("ABCDE"))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Unable to guess the algorithm of the hash ABCDE");
+  }
+
+  @Test
+  void reject_file_without_descriptor() throws IOException {
+    var bundleFile = writeBundle("foo.txt", "foo");
+
+    assertThatThrownBy(() -> newBundle().stage(bundleFile))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageStartingWith("Not a bundle of the user cache");
+  }
+
+  @Test
+  void reject_entries_outside_of_descriptor() throws IOException {
+    var bundleFile = writeBundle(CacheBundle.DESCRIPTOR, "[{\"hash\":\"" + MD5 + "\",\"filename\":\"foo.jar\"}]",
+      "../../evil.sh", "evil");
+
+    assertThatThrownBy(() -> newBundle().stage(bundleFile))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageEndingWith(": ../../evil.sh");
+    assertThat(temp.resolve("evil.sh")).doesNotExist();
+  }
+
+  @Test
+  void reject_extracted_directories() throws IOException {
+    var bundleFile = writeBundle(CacheBundle.DESCRIPTOR, "[{\"hash\":\"" + MD5 + "\",\"filename\":\"jre.zip\"}]",
+      MD5 + "/jre.zip_unzip/bin/java", "evil");
+
+    assertThatThrownBy(() -> newBundle().stage(bundleFile))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageEndingWith(": " + MD5 + "/jre.zip_unzip/bin/java");
+  }
+
+  @Test
+  void reject_invalid_descriptor() throws IOException {
+    var bundleFile = writeBundle(CacheBundle.DESCRIPTOR, "[{\"hash\":\"..\",\"filename\":\"foo.jar\"}]");
+
+    assertThatThrownBy(() -> newBundle().stage(bundleFile))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageStartingWith("Invalid descriptor in the bundle");
+  }
+
+  @Test
+  void ignore_algorithm_declared_by_the_bundle() throws IOException {
+    var bundleFile = writeBundle(CacheBundle.DESCRIPTOR, "[{\"hash\":\"ABCDE\",\"filename\":\"foo.jar\",\"algorithm\":\"CRC32\"}]",
+      "ABCDE/foo.jar", "foo");
+
+    assertThatThrownBy(() -> newBundle().stage(bundleFile))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageStartingWith("Invalid descriptor in the bundle");
+  }
+
+  private CacheBundle newBundle() throws IOException {
+    var cacheDir = Files.createDirectories(temp.resolve("cache"));
+    return new CacheBundle(cacheDir, Files.createDirectories(cacheDir.resolve("_tmp")), new FileHashes());
+  }
+
+  private Path writeBundle(String... namesAndContents) throws IOException {
+    var bundleFile = temp.resolve("bundle.tar");
+    try (var tar = new TarArchiveOutputStream(Files.newOutputStream(bundleFile))) {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        var bytes = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+        var entry = new TarArchiveEntry(namesAndContents[i]);
+        entry.setSize(bytes.length);
+        tar.putArchiveEntry(entry);
+        tar.write(bytes);
+        tar.closeArchiveEntry();
+      }
+    }
+    return bundleFile;
+  }
+}
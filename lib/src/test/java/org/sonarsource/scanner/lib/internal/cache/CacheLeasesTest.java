@@ -0,0 +1,101 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.cache;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CacheLeasesTest {
+
+  @TempDir
+  private Path leasesDir;
+
+  @Test
+  void do_not_run_action_on_leased_entry() {
+    var leases = new CacheLeases(leasesDir);
+
+    try (var lease = leases.acquire("ABCDE")) {
+      assertThat(leases.runIfNotLeased("ABCDE", () -> {
+      })).isFalse();
+    }
+    assertThat(leases.runIfNotLeased("ABCDE", () -> {
+    })).isTrue();
+  }
+
+  @Test
+  @DisabledOnOs(OS.WINDOWS)
+  void delete_sharded_lock_file_after_eviction() throws Exception {
+    var leases = new CacheLeases(leasesDir);
+    var lockFile = leasesDir.resolve("AB/CD/ABCDEF.lock");
+
+    leases.acquire("ABCDEF").close();
+    assertThat(lockFile).exists();
+
+    assertThat(leases.runIfNotLeased("ABCDEF", () -> {
+    })).isTrue();
+    assertThat(lockFile).doesNotExist();
+
+    try (var lease = leases.acquire("ABCDEF")) {
+      assertThat(lockFile).isEmptyFile();
+      assertThat(leases.runIfNotLeased("ABCDEF", () -> {
+      })).isFalse();
+    }
+  }
+
+  @Test
+  void eviction_only_blocks_leases_of_the_same_entry() throws Exception {
+    var leases = new CacheLeases(leasesDir);
+    var evictionStarted = new CountDownLatch(1);
+    var finishEviction = new CountDownLatch(1);
+
+    var eviction = CompletableFuture.supplyAsync(() -> leases.runIfNotLeased("ABCDE", () -> {
+      evictionStarted.countDown();
+      await(finishEviction);
+    }));
+    assertThat(evictionStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+    try (var lease = leases.acquire("OTHER")) {
+      assertThat(lease).isNotNull();
+    }
+    var sameEntry = CompletableFuture.runAsync(() -> leases.acquire("ABCDE").close());
+    Thread.sleep(100);
+    assertThat(sameEntry).isNotDone();
+
+    finishEviction.countDown();
+    assertThat(eviction.get(10, TimeUnit.SECONDS)).isTrue();
+    sameEntry.get(10, TimeUnit.SECONDS);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -24,15 +24,37 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
 import org.junit.jupiter.api.io.TempDir;
+import org.sonarsource.scanner.lib.ScannerProperties;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 class FileCacheTest {
@@ -46,9 +68,15 @@ class FileCacheTest {
   @BeforeEach
   public void setUp() {
     fileHashes = mock(FileHashes.class);
+    when(fileHashes.newDigest(HASH_ALGO)).thenAnswer(i -> MessageDigest.getInstance("MD5"));
     cache = new FileCache(temp, fileHashes);
   }
 
+  @AfterEach
+  public void tearDown() {
+    cache.close();
+  }
+
   @Test
   void not_in_cache() {
     assertThat(cache.get("sonar-foo-plugin-1.5.jar", "ABCDE")).isNull();
@@ -57,15 +85,29 @@ class FileCacheTest {
   @Test
   void found_in_cache() throws IOException {
     // populate the cache. Assume that hash is correct.
-    Path cachedFile = cache.getDir().resolve("ABCDE/sonar-foo-plugin-1.5.jar");
+    Path cachedFile = cache.getDir().resolve("AB/CD/ABCDE/sonar-foo-plugin-1.5.jar");
     write(cachedFile, "body");
 
     assertThat(cache.get("sonar-foo-plugin-1.5.jar", "ABCDE")).isNotNull().exists().isEqualTo(cachedFile);
   }
 
+  @Test
+  void use_legacy_entries_in_place() throws IOException {
+    // older versions of the library sharing the cache only look for entries in the legacy layout
+    Path legacyFile = cache.getDir().resolve("ABCDE/sonar-foo-plugin-1.5.jar");
+    write(legacyFile, "body");
+    write(cache.getDir().resolve("FGHIJ/sonar-bar-plugin-1.0.jar"), "body");
+
+    assertThat(cache.get("sonar-foo-plugin-1.5.jar", "ABCDE")).isEqualTo(legacyFile).hasContent("body");
+    assertThat(cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, mock(FileCache.Downloader.class)).getPathInCache())
+      .isEqualTo(legacyFile);
+    assertThat(CacheLayout.listHashDirs(cache.getDir()))
+      .containsExactlyInAnyOrder(cache.getDir().resolve("ABCDE"), cache.getDir().resolve("FGHIJ"));
+  }
+
   @Test
   void fail_to_download() {
-    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("ABCDE");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
 
     FileCache.Downloader downloader = new FileCache.Downloader() {
       public void download(String filename, Path toFile) throws IOException {
@@ -79,7 +121,7 @@ class FileCacheTest {
 
   @Test
   void fail_create_temp_file() throws IOException {
-    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("ABCDE");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
     Files.delete(temp.resolve("_tmp"));
     assertThatThrownBy(() -> cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, mock(FileCache.Downloader.class)))
       .isInstanceOf(IllegalStateException.class)
@@ -97,9 +139,10 @@ class FileCacheTest {
 
   @Test
   void fail_to_create_hash_dir() throws IOException {
-    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("ABCDE");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
 
-    var hashDir = cache.getDir().resolve("ABCDE");
+    var hashDir = cache.getDir().resolve("AB/CD/ABCDE");
+    Files.createDirectories(hashDir.getParent());
     Files.createFile(hashDir);
     assertThatThrownBy(() -> cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, mock(FileCache.Downloader.class)))
       .isInstanceOf(IllegalStateException.class)
@@ -108,7 +151,7 @@ class FileCacheTest {
 
   @Test
   void download_and_add_to_cache() throws IOException {
-    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("ABCDE");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
 
     FileCache.Downloader downloader = new FileCache.Downloader() {
       boolean single = false;
@@ -124,21 +167,55 @@ class FileCacheTest {
     var cachedFile = cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
     assertThat(cachedFile.getPathInCache()).isRegularFile()
       .hasFileName("sonar-foo-plugin-1.5.jar");
-    assertThat(cachedFile.getPathInCache().getParent()).hasParent(cache.getDir());
+    assertThat(cachedFile.getPathInCache().getParent()).isEqualTo(cache.getDir().resolve("AB/CD/ABCDE"));
     assertThat(read(cachedFile.getPathInCache())).isEqualTo("body");
     assertThat(cachedFile.isCacheHit()).isFalse();
 
     var againFromCache = cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
     assertThat(againFromCache.getPathInCache()).isRegularFile()
       .hasFileName("sonar-foo-plugin-1.5.jar");
-    assertThat(againFromCache.getPathInCache().getParent()).hasParent(cache.getDir());
+    assertThat(againFromCache.getPathInCache().getParent()).isEqualTo(cache.getDir().resolve("AB/CD/ABCDE"));
     assertThat(read(againFromCache.getPathInCache())).isEqualTo("body");
     assertThat(againFromCache.isCacheHit()).isTrue();
   }
 
+  @Test
+  void compute_hash_while_downloading() throws IOException {
+    var realHashes = new FileHashes();
+    try (var realCache = new FileCache(temp.resolve("real"), realHashes)) {
+      FileCache.Downloader downloader = new FileCache.Downloader() {
+        @Override
+        public void download(String filename, Path toFile) {
+          throw new IllegalStateException("Should stream through the digest");
+        }
+
+        @Override
+        public void download(String filename, Path toFile, MessageDigest digest) throws IOException {
+          var bytes = "body".getBytes(StandardCharsets.UTF_8);
+          digest.update(bytes);
+          Files.write(toFile, bytes);
+        }
+      };
+
+      var cachedFile = realCache.getOrDownload("sonar-foo-plugin-1.5.jar", "841a2d689ad86bd1611447453c22c6fc", "MD5", downloader);
+
+      assertThat(read(cachedFile.getPathInCache())).isEqualTo("body");
+    }
+  }
+
+  @Test
+  void default_downloader_reads_the_file_back_to_compute_hash() throws IOException {
+    try (var realCache = new FileCache(temp.resolve("real"), new FileHashes())) {
+      var cachedFile = realCache.getOrDownload("sonar-foo-plugin-1.5.jar", "841a2d689ad86bd1611447453c22c6fc", "MD5",
+        (filename, toFile) -> write(toFile, "body"));
+
+      assertThat(read(cachedFile.getPathInCache())).isEqualTo("body");
+    }
+  }
+
   @Test
   void download_corrupted_file() {
-    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("VWXYZ");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("VWXYZ");
 
     FileCache.Downloader downloader = new FileCache.Downloader() {
       public void download(String filename, Path toFile) throws IOException {
@@ -152,12 +229,12 @@ class FileCacheTest {
 
   @Test
   void concurrent_download() throws IOException {
-    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("ABCDE");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
 
     FileCache.Downloader downloader = new FileCache.Downloader() {
       public void download(String filename, Path toFile) throws IOException {
         // Emulate a concurrent download that adds file to cache before
-        var cachedFile = cache.getDir().resolve("ABCDE/sonar-foo-plugin-1.5.jar");
+        var cachedFile = cache.getDir().resolve("AB/CD/ABCDE/sonar-foo-plugin-1.5.jar");
         write(cachedFile, "downloaded by other");
 
         write(toFile, "downloaded by me");
@@ -168,10 +245,539 @@ class FileCacheTest {
     var cachedFile = cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
     assertThat(cachedFile.getPathInCache()).isRegularFile()
       .hasFileName("sonar-foo-plugin-1.5.jar");
-    assertThat(cachedFile.getPathInCache().getParent()).hasParent(cache.getDir());
+    assertThat(cachedFile.getPathInCache().getParent()).isEqualTo(cache.getDir().resolve("AB/CD/ABCDE"));
     assertThat(read(cachedFile.getPathInCache())).contains("downloaded by");
   }
 
+  @Test
+  void download_only_once_when_concurrent_threads_get_the_same_file() throws Exception {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    var downloadStarted = new CountDownLatch(1);
+    var releaseDownload = new CountDownLatch(1);
+    var downloads = new AtomicInteger();
+    FileCache.Downloader downloader = (filename, toFile) -> {
+      downloads.incrementAndGet();
+      downloadStarted.countDown();
+      try {
+        releaseDownload.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      write(toFile, "body");
+    };
+
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      var first = executor.submit(() -> cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader));
+      downloadStarted.await();
+      var second = executor.submit(() -> cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader));
+      releaseDownload.countDown();
+
+      assertThat(first.get().isCacheHit()).isFalse();
+      assertThat(second.get().isCacheHit()).isTrue();
+      assertThat(second.get().getPathInCache()).isEqualTo(first.get().getPathInCache());
+      assertThat(downloads).hasValue(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void parse_max_size() {
+    assertThat(FileCache.parseSize(null)).isEqualTo(FileCache.UNLIMITED_SIZE);
+    assertThat(FileCache.parseSize(" ")).isEqualTo(FileCache.UNLIMITED_SIZE);
+    assertThat(FileCache.parseSize("1024")).isEqualTo(1024L);
+    assertThat(FileCache.parseSize("3k")).isEqualTo(3L * 1024);
+    assertThat(FileCache.parseSize("500MB")).isEqualTo(500L * 1024 * 1024);
+    assertThat(FileCache.parseSize("10 GB")).isEqualTo(10L * 1024 * 1024 * 1024);
+    assertThatThrownBy(() -> FileCache.parseSize("ten gigs"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid value for property sonar.scanner.cacheMaxSize: ten gigs");    assertThatThrownBy(() -> FileCache.parseSize("9999999T"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid value for property sonar.scanner.cacheMaxSize: 9999999T");
+    assertThatThrownBy(() -> FileCache.parseSize("99999999999999999999"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid value for property sonar.scanner.cacheMaxSize: 99999999999999999999");
+  }
+
+  @Test
+  void evict_least_recently_used_entries_with_their_extracted_directory() throws IOException {
+    Path old = cache.getDir().resolve("OLD/jre.zip");
+    write(old, "0123456789");
+    write(cache.getDir().resolve("OLD/jre.zip_unzip/bin/java"), "0123456789");
+    Files.setLastModifiedTime(old.getParent(), FileTime.fromMillis(1000L));
+    Path recent = cache.getDir().resolve("RECENT/plugin.jar");
+    write(recent, "0123456789");
+    Files.setLastModifiedTime(recent.getParent(), FileTime.fromMillis(2000L));
+
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    try (var boundedCache = new FileCache(temp, fileHashes, new FileCache.Settings().maxSize(25L))) {
+      var cachedFile = boundedCache.getOrDownload("new.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+      assertThat(cachedFile.getPathInCache()).exists();
+      assertThat(old.getParent()).doesNotExist();
+      assertThat(recent).exists();
+    }
+  }
+
+  @Test
+  void list_entries_only_when_the_running_total_exceeds_the_max_size() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE", "FGHIJ", "KLMNO");
+    var usageIndex = new UsageIndex(temp.resolve("_index"));
+    try (var boundedCache = new FileCache(temp, fileHashes, new FileCache.Settings().maxSize(25L))) {
+      boundedCache.getOrDownload("first.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+      assertThat(usageIndex.readTotal()).hasValue(10L);
+
+      // not indexed, so only found when the entries are listed
+      Path old = cache.getDir().resolve("OLD/jre.zip");
+      write(old, "0123456789");
+      Files.setLastModifiedTime(old.getParent(), FileTime.fromMillis(1000L));
+      boundedCache.getOrDownload("second.jar", "FGHIJ", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+      assertThat(usageIndex.readTotal()).hasValue(20L);
+      assertThat(old).exists();
+
+      boundedCache.getOrDownload("third.jar", "KLMNO", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+      assertThat(old).doesNotExist();
+      // the other entries are leased
+      assertThat(usageIndex.readTotal()).hasValue(30L);
+    }
+  }
+
+  @Test
+  @DisabledOnOs(OS.WINDOWS)
+  void count_blobs_shared_by_extracted_directories_once() throws IOException {
+    var java = "0123456789".repeat(10);
+    for (String hash : List.of("OLD1", "OLD2")) {
+      write(cache.getDir().resolve(hash + "/jre.zip"), "0123456789");
+      write(cache.getDir().resolve(hash + "/jre.zip_unzip/bin/java"), java);
+      cache.deduplicate(cache.getDir().resolve(hash + "/jre.zip_unzip"));
+    }
+    Files.setLastModifiedTime(cache.getDir().resolve("OLD1"), FileTime.fromMillis(1000L));
+    Files.setLastModifiedTime(cache.getDir().resolve("OLD2"), FileTime.fromMillis(2000L));
+    var blobsDir = cache.getDir().resolve(BlobStore.BLOBS_DIR);
+
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE", "FGHIJ");
+    // 3 archives and a single copy of java
+    try (var boundedCache = new FileCache(temp, fileHashes, new FileCache.Settings().maxSize(130L))) {
+      boundedCache.getOrDownload("new.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+      assertThat(cache.getDir().resolve("OLD1/jre.zip_unzip/bin/java")).exists();
+      assertThat(cache.getDir().resolve("OLD2/jre.zip_unzip/bin/java")).exists();
+    }
+
+    try (var boundedCache = new FileCache(temp, fileHashes, new FileCache.Settings().maxSize(35L))) {
+      boundedCache.getOrDownload("other.jar", "FGHIJ", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+      assertThat(cache.getDir().resolve("OLD1")).doesNotExist();
+      assertThat(cache.getDir().resolve("OLD2")).doesNotExist();
+      try (var blobs = Files.walk(blobsDir)) {
+        assertThat(blobs.filter(Files::isRegularFile)).isEmpty();
+      }
+    }
+  }
+
+  @Test
+  void shard_the_usage_index() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDEF");
+    cache.getOrDownload("foo.jar", "ABCDEF", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+    assertThat(temp.resolve("_index/AB/CD/ABCDEF.json")).exists();
+    assertThat(temp.resolve("_leases/AB/CD/ABCDEF.lock")).exists();
+  }
+
+  @Test
+  void do_not_evict_leased_entries() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("OLD", "ABCDE");
+    var leased = cache.getOrDownload("old.jar", "OLD", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+    try (var boundedCache = new FileCache(temp, fileHashes, new FileCache.Settings().maxSize(15L))) {
+      boundedCache.getOrDownload("new.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+      assertThat(leased.getPathInCache()).exists();
+
+      cache.close();
+      boundedCache.recordUsage(boundedCache.getDir().resolve("AB/CD/ABCDE/new.jar"));
+      assertThat(leased.getPathInCache()).doesNotExist();
+    }
+  }
+
+  @Test
+  void use_files_of_read_only_caches_in_place() throws IOException {
+    var readOnlyDir = temp.resolve("readonly");
+    var readOnlyFile = readOnlyDir.resolve("ABCDE/sonar-foo-plugin-1.5.jar");
+    write(readOnlyFile, "body");
+    var downloader = mock(FileCache.Downloader.class);
+
+    var settings = new FileCache.Settings().readOnlyDirs(List.of(temp.resolve("missing"), readOnlyDir));
+    try (var layeredCache = new FileCache(temp.resolve("cache"), fileHashes, settings)) {
+      var cachedFile = layeredCache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
+      assertThat(cachedFile.getPathInCache()).isEqualTo(readOnlyFile);
+      assertThat(cachedFile.isCacheHit()).isTrue();
+      assertThat(layeredCache.isReadOnly(cachedFile.getPathInCache())).isTrue();
+      assertThat(layeredCache.get("sonar-foo-plugin-1.5.jar", "ABCDE")).isEqualTo(readOnlyFile);
+      assertThat(layeredCache.getWritableDir(readOnlyFile)).isDirectory().isEqualTo(temp.resolve("cache/AB/CD/ABCDE"));
+      verifyNoInteractions(downloader);
+    }
+  }
+
+  @Test
+  void parse_read_only_caches() throws IOException {
+    try (var layeredCache = FileCache.create(temp, Map.of(ScannerProperties.SCANNER_READ_ONLY_CACHES, " /opt/cache1 ,, /opt/cache2"))) {
+      assertThat(layeredCache.isReadOnly(Paths.get("/opt/cache2/ABCDE/foo.jar"))).isTrue();
+      assertThat(layeredCache.isReadOnly(temp.resolve("cache/ABCDE/foo.jar"))).isFalse();
+    }
+  }
+
+  @Test
+  void dropped_archives_are_cache_hits_while_extracted() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    var downloads = new AtomicInteger();
+    FileCache.Downloader downloader = (filename, toFile) -> {
+      downloads.incrementAndGet();
+      write(toFile, "0123456789");
+    };
+
+    try (var droppingCache = new FileCache(temp, fileHashes, new FileCache.Settings().dropArchives(true))) {
+      var archive = droppingCache.getOrDownload("jre.zip", "ABCDE", HASH_ALGO, downloader).getPathInCache();
+      droppingCache.dropArchive(archive);
+      assertThat(archive).exists();
+
+      write(archive.resolveSibling("jre.zip_unzip/bin/java"), "java");
+      droppingCache.dropArchive(archive);
+      assertThat(archive).doesNotExist();
+      assertThat(droppingCache.getFileSize(archive)).isEqualTo(10L);
+
+      var cachedFile = droppingCache.getOrDownload("jre.zip", "ABCDE", HASH_ALGO, downloader);
+      assertThat(cachedFile.isCacheHit()).isTrue();
+      assertThat(cachedFile.getPathInCache()).isEqualTo(archive);
+      assertThat(downloads).hasValue(1);
+      assertThatThrownBy(() -> droppingCache.exportBundle(List.of("ABCDE"), temp.resolve("bundle.tar")))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("was dropped after its extraction");
+
+      cachedFile = droppingCache.downloadAgain("jre.zip", "ABCDE", HASH_ALGO, downloader);
+      assertThat(cachedFile.isCacheHit()).isFalse();
+      assertThat(archive).hasContent("0123456789");
+      assertThat(downloads).hasValue(2);
+    }
+  }
+
+  @Test
+  void keep_archives_by_default() throws IOException {
+    var archive = cache.getDir().resolve("AB/CD/ABCDE/jre.zip");
+    write(archive, "body");
+    write(archive.resolveSibling("jre.zip_unzip/bin/java"), "java");
+
+    cache.dropArchive(archive);
+
+    assertThat(archive).exists();
+  }
+
+  @Test
+  void use_local_staging_dir_in_place_of_shared_cache() throws IOException {
+    var sharedDir = temp.resolve("shared");
+    var sharedFile = sharedDir.resolve("AB/CD/ABCDE/sonar-foo-plugin-1.5.jar");
+    write(sharedFile, "body");
+    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("ABCDE");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("FGHIJ");
+    var downloader = mock(FileCache.Downloader.class);
+
+    try (var stagingCache = new FileCache(temp.resolve("local"), fileHashes, new FileCache.Settings().sharedDir(sharedDir))) {
+      var cachedFile = stagingCache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
+      assertThat(cachedFile.isCacheHit()).isTrue();
+      assertThat(cachedFile.getPathInCache()).isEqualTo(temp.resolve("local/AB/CD/ABCDE/sonar-foo-plugin-1.5.jar")).hasContent("body");
+      verifyNoInteractions(downloader);
+
+      stagingCache.getOrDownload("sonar-bar-plugin-1.0.jar", "FGHIJ", HASH_ALGO, (filename, toFile) -> write(toFile, "downloaded"));
+    }
+
+    // written back when the cache is closed at the latest
+    assertThat(sharedDir.resolve("FG/HI/FGHIJ/sonar-bar-plugin-1.0.jar")).hasContent("downloaded");
+    assertThat(sharedDir.resolve("_tmp")).isEmptyDirectory();
+    assertThat(temp.resolve("local/_tmp")).isEmptyDirectory();
+  }
+
+  @Test
+  void download_again_files_corrupted_in_shared_cache() throws IOException {
+    var sharedDir = temp.resolve("shared");
+    write(sharedDir.resolve("AB/CD/ABCDE/sonar-foo-plugin-1.5.jar"), "corrupted");
+    when(fileHashes.of(any(File.class), eq(HASH_ALGO))).thenReturn("WRONG");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+
+    try (var stagingCache = new FileCache(temp.resolve("local"), fileHashes, new FileCache.Settings().sharedDir(sharedDir))) {
+      var cachedFile = stagingCache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "body"));
+      assertThat(cachedFile.isCacheHit()).isFalse();
+      assertThat(cachedFile.getPathInCache()).hasContent("body");
+      assertThat(stagingCache.get("sonar-foo-plugin-1.5.jar", "ABCDE")).isEqualTo(cachedFile.getPathInCache());
+    }
+  }
+
+  @Test
+  void staging_dir() {
+    var dir = temp.resolve("cache");
+    assertThat(FileCache.stagingDir(dir, null)).isNull();
+    assertThat(FileCache.stagingDir(dir, " ")).isNull();
+    assertThat(FileCache.stagingDir(dir, dir.toString())).isNull();
+    assertThat(FileCache.stagingDir(dir, temp.resolve("local").toString())).isEqualTo(temp.resolve("local"));
+  }
+
+  @Test
+  @DisabledOnOs(OS.WINDOWS)
+  void create_private_staging_dir() throws IOException {
+    var dir = temp.resolve("sonar-cache-user");
+    assertThat(FileCache.privateDir(dir)).isEqualTo(dir);
+    assertThat(Files.getPosixFilePermissions(dir)).isEqualTo(PosixFilePermissions.fromString("rwx------"));
+    assertThat(FileCache.privateDir(dir)).isEqualTo(dir);
+
+    Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxrwxrwx"));
+    assertThat(FileCache.privateDir(dir)).isNull();
+
+    var link = Files.createSymbolicLink(temp.resolve("link"), Files.createDirectory(temp.resolve("target")));
+    assertThat(FileCache.privateDir(link)).isNull();
+  }
+
+  @Test
+  void verify_files_of_shared_cache_found_by_hash_only() throws IOException {
+    var md5 = "841a2d689ad86bd1611447453c22c6fc";
+    var sharedDir = temp.resolve("shared");
+    write(CacheLayout.shardedHashDir(sharedDir, md5).resolve("sonar-foo-plugin-1.5.jar"), "corrupted");
+
+    try (var stagingCache = new FileCache(temp.resolve("local"), new FileHashes(), new FileCache.Settings().sharedDir(sharedDir))) {
+      assertThat(stagingCache.get("sonar-foo-plugin-1.5.jar", md5)).isNull();
+
+      write(CacheLayout.shardedHashDir(sharedDir, md5).resolve("sonar-foo-plugin-1.5.jar"), "body");
+      assertThat(stagingCache.get("sonar-foo-plugin-1.5.jar", md5)).hasContent("body");
+    }
+  }
+
+  @Test
+  void fetch_files_from_remote_cache_before_downloading_them() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    var remoteCache = mock(FileCache.RemoteCache.class);
+    when(remoteCache.fetch(eq("sonar-foo-plugin-1.5.jar"), eq("ABCDE"), any(Path.class), any(MessageDigest.class))).thenAnswer(invocation -> {
+      write(invocation.getArgument(2), "from remote cache");
+      return true;
+    });
+    var downloader = mock(FileCache.Downloader.class);
+
+    try (var remoteBackedCache = new FileCache(temp, fileHashes, new FileCache.Settings().remoteCache(remoteCache))) {
+      var cachedFile = remoteBackedCache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
+
+      assertThat(cachedFile.isCacheHit()).isFalse();
+      assertThat(cachedFile.getPathInCache()).hasContent("from remote cache");
+      verifyNoInteractions(downloader);
+      verify(remoteCache, never()).store(any(), any(), any());
+    }
+  }
+
+  @Test
+  void download_and_push_files_missing_or_corrupted_in_remote_cache() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("WRONG", "ABCDE", "FGHIJ");
+    var remoteCache = mock(FileCache.RemoteCache.class);
+    when(remoteCache.fetch(eq("sonar-foo-plugin-1.5.jar"), eq("ABCDE"), any(Path.class), any(MessageDigest.class))).thenAnswer(invocation -> {
+      write(invocation.getArgument(2), "corrupted");
+      return true;
+    });
+    var pushed = new ConcurrentHashMap<String, String>();
+    var finishPush = new CountDownLatch(1);
+    var pushedInBackground = new AtomicBoolean();
+    doAnswer(invocation -> {
+      pushed.put(invocation.getArgument(0), read(invocation.getArgument(2)));
+      pushedInBackground.set(finishPush.await(10, TimeUnit.SECONDS));
+      return null;
+    }).when(remoteCache).store(eq("sonar-foo-plugin-1.5.jar"), eq("ABCDE"), any());
+    doThrow(new IOException("unreachable")).when(remoteCache).store(eq("sonar-bar-plugin-1.0.jar"), any(), any());
+
+    var remoteBackedCache = new FileCache(temp, fileHashes, new FileCache.Settings().remoteCache(remoteCache));
+    var cachedFile = remoteBackedCache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "body"));
+    assertThat(cachedFile.getPathInCache()).hasContent("body");
+
+    // the push does not delay the download, nor the downloads of other files
+    cachedFile = remoteBackedCache.getOrDownload("sonar-bar-plugin-1.0.jar", "FGHIJ", HASH_ALGO, (filename, toFile) -> write(toFile, "body"));
+    assertThat(cachedFile.getPathInCache()).hasContent("body");
+    finishPush.countDown();
+
+    remoteBackedCache.close();
+    assertThat(pushedInBackground).isTrue();
+    assertThat(pushed).containsEntry("sonar-foo-plugin-1.5.jar", "body");
+    verify(remoteCache).store(eq("sonar-bar-plugin-1.0.jar"), eq("FGHIJ"), any());
+    assertThat(temp.resolve("_tmp")).isEmptyDirectory();
+  }
+
+  @Test
+  void count_files_linked_by_pending_pushes_in_full() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    var remoteCache = mock(FileCache.RemoteCache.class);
+    var finishPush = new CountDownLatch(1);
+    doAnswer(invocation -> finishPush.await(10, TimeUnit.SECONDS)).when(remoteCache).store(any(), any(), any());
+    var localDir = temp.resolve("local");
+
+    var settings = new FileCache.Settings().sharedDir(temp.resolve("shared")).remoteCache(remoteCache);
+    try (var cacheWithSnapshots = new FileCache(localDir, fileHashes, settings)) {
+      cacheWithSnapshots.getOrDownload("jre.zip", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+      var usage = new UsageIndex(localDir.resolve("_index")).read("ABCDE");
+      finishPush.countDown();
+
+      assertThat(usage).hasValueSatisfying(entry -> assertThat(entry.getSize()).isEqualTo(10));
+    }
+  }
+
+  @Test
+  void evict_entries_when_disk_is_short_of_space() throws IOException {
+    Path old = cache.getDir().resolve("OLD/jre.zip");
+    write(old, "0123456789");
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    var leased = cache.getOrDownload("new.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+    cache.ensureFreeSpace(temp, 10L);
+    assertThat(old).exists();
+
+    assertThatThrownBy(() -> cache.ensureFreeSpace(temp, Long.MAX_VALUE / 4))
+      .isInstanceOf(InsufficientDiskSpaceException.class)
+      .hasMessageContaining("Not enough disk space in " + temp);
+    assertThat(old).doesNotExist();
+    assertThat(leased.getPathInCache()).exists();
+    assertThat(cache.getStatistics().getEvictions()).isOne();
+  }
+
+  @Test
+  void download_again_after_freeing_disk_space() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    var downloads = new AtomicInteger();
+    FileCache.Downloader downloader = (filename, toFile) -> {
+      if (downloads.incrementAndGet() == 1) {
+        throw new InsufficientDiskSpaceException(toFile.getParent(), DiskSpace.RESERVE + 10L, 0L);
+      }
+      write(toFile, "body");
+    };
+
+    var cachedFile = cache.getOrDownload("sonar-foo-plugin-1.5.jar", "ABCDE", HASH_ALGO, downloader);
+
+    assertThat(cachedFile.getPathInCache()).hasContent("body");
+    assertThat(downloads).hasValue(2);
+  }
+
+  @Test
+  void export_and_import_bundle() throws IOException {
+    var bundleFile = temp.resolve("bundle.tar");
+    var md5 = "841a2d689ad86bd1611447453c22c6fc";
+    try (var source = new FileCache(temp.resolve("source"), new FileHashes())) {
+      var archive = source.getOrDownload("jre.zip", md5, "MD5", (filename, toFile) -> write(toFile, "body"));
+      var extractedFile = archive.getPathInCache().resolveSibling("jre.zip_unzip/bin/java");
+      write(extractedFile, "java");
+      extractedFile.toFile().setExecutable(true);
+      source.exportBundle(List.of(md5), bundleFile);
+    }
+
+    try (var target = new FileCache(temp.resolve("target"), new FileHashes())) {
+      assertThat(target.importBundle(bundleFile)).isEqualTo(1);
+      assertThat(target.importBundle(bundleFile)).isZero();
+
+      var downloader = mock(FileCache.Downloader.class);
+      var cachedFile = target.getOrDownload("jre.zip", md5, "MD5", downloader);
+      assertThat(cachedFile.isCacheHit()).isTrue();
+      assertThat(read(cachedFile.getPathInCache())).isEqualTo("body");
+      assertThat(cachedFile.getPathInCache().resolveSibling("jre.zip_unzip")).doesNotExist();
+      verifyNoInteractions(downloader);
+    }
+  }
+
+  @Test
+  void do_not_import_bundle_with_wrong_hash() throws IOException {
+    var bundleFile = temp.resolve("bundle.tar");
+    var md5 = "841a2d689ad86bd1611447453c22c6fc";
+    var realHashes = new FileHashes();
+    try (var source = new FileCache(temp.resolve("source"), realHashes)) {
+      source.getOrDownload("plugin.jar", md5, "MD5", (filename, toFile) -> write(toFile, "body"));
+      write(CacheLayout.shardedHashDir(source.getDir(), md5).resolve("plugin.jar"), "tampered");
+      source.exportBundle(List.of(md5), bundleFile);
+    }
+
+    try (var target = new FileCache(temp.resolve("target"), realHashes)) {
+      assertThatThrownBy(() -> target.importBundle(bundleFile))
+        .isInstanceOf(HashMismatchException.class)
+        .hasMessageContaining("plugin.jar");
+      assertThat(CacheLayout.shardedHashDir(target.getDir(), md5)).doesNotExist();
+      assertThat(target.getDir().resolve("_tmp")).isEmptyDirectory();
+    }
+  }
+
+  @Test
+  void fail_to_export_missing_entry() {
+    assertThatThrownBy(() -> cache.exportBundle(List.of("ABCDE"), temp.resolve("bundle.tar")))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("No entry with hash ABCDE in the user cache");
+  }
+
+  @Test
+  void persist_statistics_of_all_processes() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE", "FGHIJ");
+    try (var other = new FileCache(temp, fileHashes, new FileCache.Settings().maxSize(15L))) {
+      other.getOrDownload("foo.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+      other.getOrDownload("foo.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+      other.recordExtraction(100L, 2L);
+    }
+    cache.close();
+    cache.getOrDownload("bar.jar", "FGHIJ", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+
+    var statistics = cache.getStatistics();
+    assertThat(statistics.getHits()).isEqualTo(1);
+    assertThat(statistics.getMisses()).isEqualTo(2);
+    assertThat(statistics.getBytesDownloaded()).isEqualTo(20);
+    assertThat(statistics.getBytesExtracted()).isEqualTo(100);
+    assertThat(statistics.getExtractionMillis()).isEqualTo(2);
+    assertThat(statistics.getEvictions()).isZero();
+
+    cache.close();
+    assertThat(new FileCache(temp, fileHashes).getStatistics().getMisses()).isEqualTo(2);
+  }
+
+  @Test
+  void persist_statistics_after_each_download_and_extraction() throws IOException {
+    when(fileHashes.of(any(MessageDigest.class))).thenReturn("ABCDE");
+    cache.getOrDownload("foo.jar", "ABCDE", HASH_ALGO, (filename, toFile) -> write(toFile, "0123456789"));
+    try (var otherProcess = new FileCache(temp, fileHashes)) {
+      assertThat(otherProcess.getStatistics().getMisses()).isOne();
+
+      cache.recordExtraction(100L, 2L);
+      assertThat(otherProcess.getStatistics().getBytesExtracted()).isEqualTo(100);
+      assertThat(cache.getStatistics().getMisses()).isOne();
+    }
+  }
+
+  @Test
+  void merge_statistics_of_concurrent_threads() throws Exception {
+    var caches = List.of(cache, new FileCache(temp, fileHashes), new FileCache(temp, fileHashes), new FileCache(temp, fileHashes));
+    var executor = Executors.newFixedThreadPool(caches.size());
+    try {
+      var results = caches.stream()
+        .map(c -> executor.submit(() -> {
+          for (int i = 0; i < 50; i++) {
+            c.recordExtraction(1L, 0L);
+          }
+          return null;
+        }))
+        .collect(Collectors.toList());
+      for (var result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+      for (var c : caches) {
+        c.close();
+      }
+    }
+
+    assertThat(new FileCache(temp, fileHashes).getStatistics().getBytesExtracted()).isEqualTo(200);
+  }
+
+  @Test
+  void ignore_unreadable_statistics() throws IOException {
+    Files.writeString(temp.resolve("_stats.json"), "{not json");
+
+    assertThat(cache.getStatistics().getHits()).isZero();
+  }
+
   private static void write(Path f, String txt) throws IOException {
     Files.createDirectories(f.getParent());
     Files.write(f, txt.getBytes(StandardCharsets.UTF_8));
@@ -24,6 +24,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -72,6 +75,26 @@ public class FileHashesTest {
     }
   }
 
+  @Test
+  public void test_digest_of_file() throws IOException {
+    File file = temp.newFile();
+    Files.write(file.toPath(), "sonar".getBytes(StandardCharsets.UTF_8));
+
+    FileHashes fileHashes = new FileHashes();
+    MessageDigest digest = fileHashes.newDigest("SHA-256");
+    FileHashes.update(digest, file.toPath());
+
+    assertThat(fileHashes.of(digest)).isEqualTo("48ce1a75f18924f02f7d555a0c30d5c2f5f09eba641a555555d355a477bb9ae6");
+  }
+
+  @Test
+  public void fail_if_unknown_algorithm() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Unsupported hash algorithm: foo");
+
+    new FileHashes().newDigest("foo");
+  }
+
   @Test
   public void test_toHex() {
     // lower-case
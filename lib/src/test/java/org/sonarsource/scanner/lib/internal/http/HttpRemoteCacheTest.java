@@ -0,0 +1,115 @@
+/*
+ * SonarScanner Java Library
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.lib.internal.http;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+import org.sonarsource.scanner.lib.ScannerProperties;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HttpRemoteCacheTest {
+
+  private static final String HASH = "abcdef";
+
+  @RegisterExtension
+  static WireMockExtension cacheNode = WireMockExtension.newInstance()
+    .options(wireMockConfig().dynamicPort())
+    .build();
+
+  @TempDir
+  private Path temp;
+
+  @Test
+  void not_configured() {
+    assertThat(HttpRemoteCache.create(Map.of(), temp)).isNull();
+  }
+
+  @Test
+  void fetch_and_digest() throws Exception {
+    cacheNode.stubFor(get("/cache/" + HASH).willReturn(aResponse().withBody("body")));
+    var toFile = temp.resolve("jre.zip");
+    var digest = MessageDigest.getInstance("SHA-256");
+
+    assertThat(create(Map.of(ScannerProperties.SCANNER_REMOTE_CACHE_TOKEN, "some_token")).fetch("jre.zip", HASH, toFile, digest)).isTrue();
+
+    assertThat(toFile).hasContent("body");
+    assertThat(digest.digest()).isEqualTo(MessageDigest.getInstance("SHA-256").digest("body".getBytes(StandardCharsets.UTF_8)));
+    cacheNode.verify(getRequestedFor(urlEqualTo("/cache/" + HASH)).withHeader("Authorization", equalTo("Bearer some_token")));
+  }
+
+  @Test
+  void fetch_miss() throws Exception {
+    cacheNode.stubFor(get("/cache/" + HASH).willReturn(aResponse().withStatus(404)));
+
+    assertThat(create(Map.of()).fetch("jre.zip", HASH, temp.resolve("jre.zip"), MessageDigest.getInstance("SHA-256"))).isFalse();
+    assertThat(temp.resolve("jre.zip")).doesNotExist();
+  }
+
+  @Test
+  void fail_to_fetch() {
+    cacheNode.stubFor(get("/cache/" + HASH).willReturn(aResponse().withStatus(500)));
+    var underTest = create(Map.of());
+
+    assertThatThrownBy(() -> underTest.fetch("jre.zip", HASH, temp.resolve("jre.zip"), MessageDigest.getInstance("SHA-256")))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("500");
+  }
+
+  @Test
+  void push_only_if_enabled() throws Exception {
+    cacheNode.stubFor(put("/cache/" + HASH).willReturn(aResponse().withStatus(201)));
+    var file = temp.resolve("jre.zip");
+    Files.writeString(file, "body");
+
+    create(Map.of()).store("jre.zip", HASH, file);
+    cacheNode.verify(0, anyRequestedFor(anyUrl()));
+
+    create(Map.of(ScannerProperties.SCANNER_REMOTE_CACHE_PUSH, "true")).store("jre.zip", HASH, file);
+    cacheNode.verify(putRequestedFor(urlEqualTo("/cache/" + HASH)).withRequestBody(equalTo("body")));
+  }
+
+  private HttpRemoteCache create(Map<String, String> additionalProps) {
+    Map<String, String> props = new HashMap<>();
+    props.put(ScannerProperties.HOST_URL, "http://sonarqube");
+    props.put(ScannerProperties.SCANNER_REMOTE_CACHE_URL, cacheNode.baseUrl() + "/cache/");
+    props.putAll(additionalProps);
+    return HttpRemoteCache.create(props, temp);
+  }
+}
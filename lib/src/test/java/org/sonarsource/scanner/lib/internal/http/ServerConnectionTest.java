@@ -20,9 +20,11 @@
 package org.sonarsource.scanner.lib.internal.http;
 
 import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
@@ -85,6 +87,34 @@ class ServerConnectionTest {
     assertThat(Files.readString(toFile)).isEqualTo(HELLO_WORLD);
   }
 
+  @Test
+  void download_and_digest(@TempDir Path tmpFolder) throws Exception {
+    var toFile = tmpFolder.resolve("index.txt");
+    answer(HELLO_WORLD);
+    var digest = MessageDigest.getInstance("SHA-256");
+
+    ServerConnection underTest = create();
+    underTest.downloadFromRestApi("/batch/index.txt", toFile, digest);
+
+    assertThat(Files.readString(toFile)).isEqualTo(HELLO_WORLD);
+    assertThat(digest.digest()).isEqualTo(MessageDigest.getInstance("SHA-256").digest(HELLO_WORLD.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void download_to_file_and_tee(@TempDir Path tmpFolder) throws Exception {
+    var toFile = tmpFolder.resolve("index.txt");
+    answer(HELLO_WORLD);
+    var digest = MessageDigest.getInstance("SHA-256");
+    var tee = new ByteArrayOutputStream();
+
+    ServerConnection underTest = create();
+    underTest.downloadFromRestApi("/batch/index.txt", toFile, digest, tee);
+
+    assertThat(Files.readString(toFile)).isEqualTo(HELLO_WORLD);
+    assertThat(tee.toString(StandardCharsets.UTF_8)).isEqualTo(HELLO_WORLD);
+    assertThat(digest.digest()).isEqualTo(MessageDigest.getInstance("SHA-256").digest(HELLO_WORLD.getBytes(StandardCharsets.UTF_8)));
+  }
+
   @Test
   void downloadFromWebApi_fails_on_url_validation(@TempDir Path tmpFolder) {
     var toFile = tmpFolder.resolve("index.txt");
@@ -19,9 +19,19 @@
  */
 package org.sonarsource.scanner.lib.internal.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -60,6 +70,45 @@ class CompressionUtilsTest {
     assertThat(toDir.toFile().list()).hasSize(3);
   }
 
+  @Test
+  void unzip_replaces_existing_files_without_writing_through_hard_links() throws IOException {
+    var zip = Paths.get("src/test/resources/archive.zip");
+    var toDir = temp.resolve("dir");
+    Files.createDirectories(toDir);
+    var shared = Files.writeString(temp.resolve("shared.txt"), "shared content");
+    Files.createLink(toDir.resolve("foo.txt"), shared);
+
+    CompressionUtils.unzip(zip, toDir);
+
+    assertThat(toDir.resolve("foo.txt")).hasSize(12L);
+    assertThat(shared).hasContent("shared content");
+  }
+
+  @Test
+  void extract_large_tar_gz_entries() throws IOException {
+    var content = new byte[1024 * 1024 + 17];
+    new Random(42).nextBytes(content);
+    var tar = temp.resolve("large.tar.gz");
+    try (var out = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tar)))) {
+      var entry = new TarArchiveEntry("large.bin");
+      entry.setSize(content.length);
+      entry.setMode(0644);
+      out.putArchiveEntry(entry);
+      out.write(content);
+      out.closeArchiveEntry();
+      var emptyEntry = new TarArchiveEntry("empty.bin");
+      emptyEntry.setMode(0644);
+      out.putArchiveEntry(emptyEntry);
+      out.closeArchiveEntry();
+    }
+
+    var toDir = temp.resolve("dir");
+    CompressionUtils.extractTarGz(tar, toDir, e -> true);
+
+    assertThat(toDir.resolve("large.bin")).hasBinaryContent(content);
+    assertThat(toDir.resolve("empty.bin")).isEmptyFile();
+  }
+
   @Test
   void fail_if_unzipping_file_outside_target_directory() {
     var zip = Paths.get("src/test/resources/zip-slip.zip");
@@ -71,6 +120,58 @@ class CompressionUtilsTest {
         "../../../../../../../../../../../../../../../../../../../../../../../../tmp/evil.txt");
   }
 
+  @Test
+  void fail_if_extracting_tar_entry_outside_target_directory() throws IOException {
+    var tar = temp.resolve("tar-slip.tar.gz");
+    try (var out = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tar)))) {
+      var bytes = "evil".getBytes(StandardCharsets.UTF_8);
+      var entry = new TarArchiveEntry("../evil.txt");
+      entry.setSize(bytes.length);
+      out.putArchiveEntry(entry);
+      out.write(bytes);
+      out.closeArchiveEntry();
+    }
+    var toDir = temp.resolve("dir");
+
+    assertThatThrownBy(() -> CompressionUtils.extractTarGz(tar, toDir))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Extracting an entry outside the target directory is not allowed: ../evil.txt");
+    assertThat(temp.resolve("evil.txt")).doesNotExist();
+  }
+
+  @Test
+  void unzip_files_concurrently() throws IOException {
+    var zip = temp.resolve("many.zip");
+    try (var out = new ZipOutputStream(Files.newOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("dir/"));
+      for (int i = 0; i < 100; i++) {
+        out.putNextEntry(new ZipEntry("dir/sub" + (i % 10) + "/file" + i + ".txt"));
+        out.write(("content " + i).getBytes(StandardCharsets.UTF_8));
+      }
+      out.putNextEntry(new ZipEntry("skipped.txt"));
+    }
+    var toDir = temp.resolve("dir");
+
+    CompressionUtils.unzip(zip, toDir, e -> !e.getName().equals("skipped.txt"), 4);
+
+    try (var files = Files.walk(toDir)) {
+      assertThat(files.filter(Files::isRegularFile)).hasSize(100);
+    }
+    assertThat(toDir.resolve("dir/sub2/file42.txt")).hasContent("content 42");
+    assertThat(toDir.resolve("skipped.txt")).doesNotExist();
+  }
+
+  @Test
+  void fail_if_unzipping_file_outside_target_directory_concurrently() {
+    var zip = Paths.get("src/test/resources/zip-slip.zip");
+    var toDir = temp.resolve("dir");
+
+    assertThatThrownBy(() -> CompressionUtils.unzip(zip, toDir, e -> true, 4))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageStartingWith("Unzipping an entry outside the target directory is not allowed");
+    assertThat(temp.resolve("tmp/evil.txt")).doesNotExist();
+  }
+
   @Test
   void extract_tar_gz() throws IOException {
     var tar = Paths.get("src/test/resources/archive.tar.gz");
@@ -79,6 +180,59 @@ class CompressionUtilsTest {
     assertThat(toDir.toFile().list()).hasSize(3);
   }
 
+  @Test
+  void extract_tar_xz() throws IOException {
+    var tar = Paths.get("src/test/resources/archive.tar.xz");
+    var toDir = temp.resolve("dir");
+    CompressionUtils.extractTarXz(tar, toDir, e -> true);
+    assertThat(toDir.toFile().list()).hasSize(3);
+    assertThat(toDir.resolve("dir/hello.properties")).exists();
+  }
+
+  @Test
+  void extract_tar_zstd() throws IOException {
+    var tar = Paths.get("src/test/resources/archive.tar.zst");
+    var toDir = temp.resolve("dir");
+    CompressionUtils.extractTarZstd(tar, toDir, e -> true);
+    assertThat(toDir.toFile().list()).hasSize(3);
+    assertThat(toDir.resolve("dir/hello.properties")).exists();
+  }
+
+  @Test
+  void extract_tar_gz_stream_without_closing_it() throws IOException {
+    var toDir = temp.resolve("dir");
+    var closed = new AtomicBoolean();
+    var in = new ByteArrayInputStream(Files.readAllBytes(Paths.get("src/test/resources/archive.tar.gz"))) {
+      @Override
+      public void close() {
+        closed.set(true);
+      }
+    };
+
+    CompressionUtils.extractTarGz(in, toDir, e -> !e.getName().startsWith("dir"));
+
+    assertThat(toDir.toFile().list()).containsExactlyInAnyOrder("bar.txt", "foo.txt");
+    assertThat(closed).isFalse();
+  }
+
+  @Test
+  void uncompressed_size() throws IOException {
+    assertThat(CompressionUtils.uncompressedSize(Paths.get("src/test/resources/archive.zip"))).isEqualTo(26L);
+    assertThat(CompressionUtils.uncompressedSize(Paths.get("src/test/resources/archive.tar.gz"))).isEqualTo(4608L);
+    assertThat(CompressionUtils.uncompressedSize(Paths.get("src/test/resources/archive.tar.xz"))).isEqualTo(4608L);
+    assertThat(CompressionUtils.uncompressedSize(Paths.get("src/test/resources/archive.tar.zst"))).isEqualTo(4608L);
+    assertThat(CompressionUtils.uncompressedSize(Paths.get("src/test/resources/README.md"))).isEqualTo(-1L);
+
+    var jar = temp.resolve("engine.jar");
+    try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+      out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+      out.write("Main-Class: Main\n".getBytes(StandardCharsets.UTF_8));
+      out.putNextEntry(new ZipEntry("Main.class"));
+      out.write(new byte[100]);
+    }
+    assertThat(CompressionUtils.uncompressedSize(jar)).isEqualTo(117L);
+  }
+
   @Test
   void fileMode_conversion() {
     assertThat(CompressionUtils.fromFileMode(Integer.parseInt("000", 8))).isEmpty();